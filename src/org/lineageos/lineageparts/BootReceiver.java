@@ -28,11 +28,23 @@ import org.lineageos.lineageparts.contributors.ContributorsCloudFragment;
 import org.lineageos.lineageparts.gestures.TouchscreenGestureSettings;
 import org.lineageos.lineageparts.input.ButtonSettings;
 
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 public class BootReceiver extends BroadcastReceiver {
 
     private static final String TAG = "BootReceiver";
     private static final String ONE_TIME_TUNABLE_RESTORE = "hardware_tunable_restored";
 
+    // Boot work which can't run on the main thread, the thread is let go once done
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            r -> new Thread(r, TAG));
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
     @Override
     public void onReceive(Context ctx, Intent intent) {
         if (!hasRestoredTunable(ctx)) {
@@ -44,8 +56,15 @@ public class BootReceiver extends BroadcastReceiver {
         ButtonSettings.restoreKeySwapper(ctx);
         TouchscreenGestureSettings.restoreTouchscreenGestureStates(ctx);
 
-        // Extract the contributors database
-        ContributorsCloudFragment.extractContributorsCloudDatabase(ctx);
+        // Extract the contributors database, off the main thread
+        final PendingResult result = goAsync();
+        sExecutor.execute(() -> {
+            try {
+                ContributorsCloudFragment.extractContributorsCloudDatabase(ctx);
+            } finally {
+                result.finish();
+            }
+        });
     }
 
     private boolean hasRestoredTunable(Context context) {
@@ -0,0 +1,530 @@
+/*
+ * Copyright (C) 2022 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineageparts.contributors;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.graphics.RecordingCanvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.RenderNode;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Draws the contributors cloud as a pyramid of fixed size tiles. Only the tiles which
+ * intersect the visible area are rendered, and they are rendered at the pyramid level
+ * which best matches the current display scale, so deep zoom stays sharp while the
+ * amount of bitmap memory in use is bounded by the tile cache.
+ *
+ * In vector mode, hardware accelerated canvases draw the text directly instead, from
+ * a display list recorded per pyramid level, so no bitmap is allocated at all.
+ */
+public class ContributorsCloudDrawable extends Drawable {
+
+    private static final String TAG = "ContributorsCloud";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // Size of a single tile, in pixels
+    static final int TILE_SIZE = 256;
+    // Size of the whole cloud at level 0 (also the intrinsic size of the drawable)
+    static final int BASE_SIZE = TILE_SIZE * 4;
+    // Deepest pyramid level (BASE_SIZE << MAX_LEVEL pixels per side)
+    static final int MAX_LEVEL = 5;
+
+    // Allow a bit of upscaling before switching to the next level
+    private static final float LEVEL_BIAS = 0.2f;
+
+    private static final int RENDER_THREADS = 2;
+
+    // Glyphs smaller than this on screen are left out of the display lists
+    private static final float MIN_TEXT_SIZE = 3f;
+
+    /**
+     * Tiles are rendered on a dedicated pool. Requests are served newest first, so
+     * the tiles of the area the user is currently looking at are rendered before the
+     * ones requested while panning or zooming through, which are likely stale and
+     * get skipped (or aborted half way) once their turn comes.
+     */
+    private static final ThreadPoolExecutor sRenderExecutor = new ThreadPoolExecutor(
+            RENDER_THREADS, RENDER_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingDeque<Runnable>() {
+                @Override
+                public boolean offer(Runnable r) {
+                    return offerFirst(r);
+                }
+            },
+            r -> new Thread(r, "ContributorsCloudRender"));
+
+    static {
+        sRenderExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<Long, Bitmap> mTiles;
+    private final Set<Long> mPendingTiles = new HashSet<>();
+
+    private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mClipBounds = new Rect();
+    private final Rect mSrcRect = new Rect();
+    private final RectF mDstRect = new RectF();
+
+    // Used to repaint cached tiles when the selection changes
+    private final Canvas mRepaintCanvas = new Canvas();
+    private final Paint mRepaintPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DITHER_FLAG);
+    private final RectF mDirtyRect = new RectF();
+
+    // Vector mode display lists, one per pyramid level, and the selection drawn on top
+    private final RenderNode[] mDisplayLists = new RenderNode[MAX_LEVEL + 1];
+    private final RenderNode mSelectionNode = new RenderNode("ContributorsCloudSelection");
+    private final RectF mSelectionRect = new RectF();
+    private int mSelectionLevel = -1;
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private boolean mVectorMode;
+
+    private final int mColorForeground;
+    private final int mColorSelected;
+
+    private ContributorsCloudIndex mIndex;
+    private int mSelectedId = -1;
+
+    private volatile int mLevel;
+    private volatile int mGeneration;
+
+    public ContributorsCloudDrawable(int colorForeground, int colorSelected, int cacheSizeBytes) {
+        mColorForeground = colorForeground;
+        mColorSelected = colorSelected;
+        mSelectionNode.setPosition(0, 0, BASE_SIZE, BASE_SIZE);
+        mTiles = new LruCache<Long, Bitmap>(cacheSizeBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+    }
+
+    /**
+     * Sets the contents of the cloud.
+     */
+    void setCloud(ContributorsCloudIndex index, int selectedId) {
+        mIndex = index;
+        mSelectedId = selectedId;
+        invalidateTiles();
+    }
+
+    /**
+     * Enables drawing the text directly on hardware accelerated canvases.
+     */
+    public void setVectorMode(boolean vectorMode) {
+        if (vectorMode != mVectorMode) {
+            mVectorMode = vectorMode;
+            if (!vectorMode) {
+                discardDisplayLists();
+            }
+            invalidateSelf();
+        }
+    }
+
+    /**
+     * Changes the selected contributor. Cached tiles are kept, and only the areas
+     * covered by the previously and the newly selected contributors are repainted.
+     * In vector mode only the small selection display list is recorded again.
+     */
+    void setSelectedContributor(int selectedId) {
+        if (selectedId == mSelectedId) {
+            return;
+        }
+        final int previousId = mSelectedId;
+        mSelectedId = selectedId;
+        if (mIndex == null) {
+            return;
+        }
+
+        mSelectionNode.discardDisplayList();
+
+        repaintContributor(previousId);
+        repaintContributor(selectedId);
+        invalidateSelf();
+    }
+
+    /**
+     * Updates the scale at which the drawable is being displayed, which selects the
+     * pyramid level used to draw.
+     */
+    public void setDisplayScale(float scale) {
+        int level = 0;
+        if (scale > 0) {
+            level = (int) Math.ceil((Math.log(scale) / Math.log(2)) - LEVEL_BIAS);
+        }
+        level = Math.max(0, Math.min(MAX_LEVEL, level));
+        if (level != mLevel) {
+            mLevel = level;
+            invalidateSelf();
+        }
+    }
+
+    public void release() {
+        discardDisplayLists();
+        mGeneration++;
+        mHandler.removeCallbacksAndMessages(null);
+        mPendingTiles.clear();
+        mTiles.evictAll();
+    }
+
+    private void invalidateTiles() {
+        discardDisplayLists();
+        mGeneration++;
+        mPendingTiles.clear();
+        mTiles.evictAll();
+        invalidateSelf();
+    }
+
+    @Override
+    public void draw(@NonNull Canvas canvas) {
+        if (mIndex == null) {
+            return;
+        }
+
+        if (mVectorMode && canvas.isHardwareAccelerated()) {
+            drawDisplayList(canvas);
+            return;
+        }
+
+        if (!canvas.getClipBounds(mClipBounds)
+                || !mClipBounds.intersect(0, 0, BASE_SIZE, BASE_SIZE)) {
+            return;
+        }
+
+        final int level = mLevel;
+        final int tiles = tilesPerSide(level);
+        final float span = (float) BASE_SIZE / tiles;
+        final int left = (int) (mClipBounds.left / span);
+        final int top = (int) (mClipBounds.top / span);
+        final int right = Math.min(tiles - 1, (int) (mClipBounds.right / span));
+        final int bottom = Math.min(tiles - 1, (int) (mClipBounds.bottom / span));
+
+        for (int ty = top; ty <= bottom; ty++) {
+            for (int tx = left; tx <= right; tx++) {
+                mDstRect.set(tx * span, ty * span, (tx + 1) * span, (ty + 1) * span);
+                Bitmap tile = mTiles.get(tileKey(level, tx, ty));
+                if (tile != null) {
+                    canvas.drawBitmap(tile, null, mDstRect, mBitmapPaint);
+                } else {
+                    requestTile(level, tx, ty);
+                    drawFallbackTile(canvas, level, tx, ty);
+                }
+            }
+        }
+    }
+
+    private void drawDisplayList(Canvas canvas) {
+        final int level = mLevel;
+        RenderNode node = mDisplayLists[level];
+        if (node == null) {
+            node = new RenderNode("ContributorsCloud" + level);
+            node.setPosition(0, 0, BASE_SIZE, BASE_SIZE);
+            node.setAlpha(mBitmapPaint.getAlpha() / 255f);
+            mDisplayLists[level] = node;
+        }
+        if (!node.hasDisplayList()) {
+            final long start = DEBUG ? SystemClock.elapsedRealtimeNanos() : 0;
+            RecordingCanvas recordingCanvas = node.beginRecording();
+            try {
+                recordCloud(recordingCanvas, level);
+            } finally {
+                node.endRecording();
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Recorded cloud level " + level + " in "
+                        + (SystemClock.elapsedRealtimeNanos() - start) / 1000 + "us");
+            }
+        }
+        canvas.drawRenderNode(node);
+
+        if (!mSelectionNode.hasDisplayList() || mSelectionLevel != level) {
+            RecordingCanvas recordingCanvas = mSelectionNode.beginRecording();
+            try {
+                recordSelection(recordingCanvas, level);
+            } finally {
+                mSelectionNode.endRecording();
+            }
+            mSelectionLevel = level;
+        }
+        canvas.drawRenderNode(mSelectionNode);
+    }
+
+    private void recordCloud(Canvas canvas, int level) {
+        // At this level the cloud is displayed at roughly (1 << level) times its size
+        final float minTextSize = MIN_TEXT_SIZE / (1 << level);
+        final ContributorsCloudLayout layout = mIndex.getLayout();
+        mTextPaint.setColor(mColorForeground);
+        for (int glyph = 0; glyph < layout.getCount(); glyph++) {
+            if (layout.getFontSize(glyph) >= minTextSize) {
+                layout.draw(canvas, mTextPaint, glyph);
+            }
+        }
+    }
+
+    /**
+     * Draws the selected glyph over the cloud, followed by the glyphs which overlap it
+     * and were drawn after it, so the stacking of the cloud is kept.
+     */
+    private void recordSelection(Canvas canvas, int level) {
+        final int selected = mIndex.findGlyph(mSelectedId);
+        if (selected == -1) {
+            return;
+        }
+        final float minTextSize = MIN_TEXT_SIZE / (1 << level);
+        final ContributorsCloudLayout layout = mIndex.getLayout();
+        layout.getBounds(selected, mSelectionRect);
+        mIndex.query(mSelectionRect.left, mSelectionRect.top,
+                mSelectionRect.right, mSelectionRect.bottom, glyph -> {
+                    if (glyph == selected) {
+                        mTextPaint.setColor(mColorSelected);
+                        layout.draw(canvas, mTextPaint, glyph);
+                    } else if (glyph > selected && layout.getFontSize(glyph) >= minTextSize) {
+                        mTextPaint.setColor(mColorForeground);
+                        layout.draw(canvas, mTextPaint, glyph);
+                    }
+                    return true;
+                });
+    }
+
+    private void discardDisplayLists() {
+        for (RenderNode node : mDisplayLists) {
+            if (node != null) {
+                node.discardDisplayList();
+            }
+        }
+        mSelectionNode.discardDisplayList();
+    }
+
+    /**
+     * Draw the area of a missing tile using the closest cached lower resolution tile,
+     * so the user sees a blurry cloud instead of a hole while the tile is rendered.
+     */
+    private void drawFallbackTile(Canvas canvas, int level, int tx, int ty) {
+        for (int l = level - 1; l >= 0; l--) {
+            final int shift = level - l;
+            Bitmap parent = mTiles.get(tileKey(l, tx >> shift, ty >> shift));
+            if (parent != null) {
+                final int size = TILE_SIZE >> shift;
+                final int x = (tx - ((tx >> shift) << shift)) * size;
+                final int y = (ty - ((ty >> shift) << shift)) * size;
+                mSrcRect.set(x, y, x + Math.max(1, size), y + Math.max(1, size));
+                canvas.drawBitmap(parent, mSrcRect, mDstRect, mBitmapPaint);
+                return;
+            }
+        }
+    }
+
+    private void requestTile(final int level, final int tx, final int ty) {
+        final long key = tileKey(level, tx, ty);
+        if (!mPendingTiles.add(key)) {
+            return;
+        }
+
+        final int generation = mGeneration;
+        final ContributorsCloudIndex index = mIndex;
+        final int selectedId = mSelectedId;
+        final BooleanSupplier isStale = () -> generation != mGeneration || level != mLevel;
+        sRenderExecutor.execute(() -> {
+            Bitmap tile = null;
+            // Skip tiles which are no longer needed by the time we get to them
+            if (!isStale.getAsBoolean()) {
+                try {
+                    tile = renderTile(index, selectedId, level, tx, ty, isStale);
+                } catch (Exception ex) {
+                    Log.e(TAG, "Failed to render cloud tile " + level + "/" + tx + "/" + ty, ex);
+                }
+            }
+            final Bitmap result = tile;
+            mHandler.post(() -> {
+                if (generation != mGeneration) {
+                    return;
+                }
+                mPendingTiles.remove(key);
+                if (result != null) {
+                    // The selection may have changed while the tile was rendered
+                    if (selectedId != mSelectedId) {
+                        repaintContributor(result, level, tx, ty, selectedId);
+                        repaintContributor(result, level, tx, ty, mSelectedId);
+                    }
+                    mTiles.put(key, result);
+                    invalidateSelf();
+                }
+            });
+        });
+    }
+
+    private Bitmap renderTile(ContributorsCloudIndex index, int selectedId,
+            int level, int tx, int ty, BooleanSupplier isStale) {
+        Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        // Only draw the glyphs which touch this tile (plus a unit for antialiasing)
+        final float span = (float) TILE_SIZE / (1 << level);
+        RectF area = new RectF(tx * span, ty * span, (tx + 1) * span, (ty + 1) * span);
+        area.inset(-1, -1);
+        if (!paintTileArea(canvas, new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DITHER_FLAG),
+                index, selectedId, level, tx, ty, area, isStale)) {
+            // The tile went stale while rendering it
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Repaints the area of a contributor in every cached tile it touches.
+     */
+    private void repaintContributor(int contributorId) {
+        final int glyph = mIndex.findGlyph(contributorId);
+        if (glyph == -1) {
+            return;
+        }
+        mIndex.getLayout().getBounds(glyph, mDirtyRect);
+        mDirtyRect.inset(-1, -1);
+
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            final int tiles = tilesPerSide(level);
+            final float span = (float) BASE_SIZE / tiles;
+            final int left = Math.max(0, (int) (mDirtyRect.left / span));
+            final int top = Math.max(0, (int) (mDirtyRect.top / span));
+            final int right = Math.min(tiles - 1, (int) (mDirtyRect.right / span));
+            final int bottom = Math.min(tiles - 1, (int) (mDirtyRect.bottom / span));
+            for (int ty = top; ty <= bottom; ty++) {
+                for (int tx = left; tx <= right; tx++) {
+                    Bitmap tile = mTiles.get(tileKey(level, tx, ty));
+                    if (tile != null) {
+                        repaintArea(tile, level, tx, ty, mDirtyRect);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Repaints the area of a contributor in a single tile.
+     */
+    private void repaintContributor(Bitmap tile, int level, int tx, int ty, int contributorId) {
+        final int glyph = mIndex.findGlyph(contributorId);
+        if (glyph == -1) {
+            return;
+        }
+        mIndex.getLayout().getBounds(glyph, mDirtyRect);
+        mDirtyRect.inset(-1, -1);
+        repaintArea(tile, level, tx, ty, mDirtyRect);
+    }
+
+    private void repaintArea(Bitmap tile, int level, int tx, int ty, RectF area) {
+        mRepaintCanvas.setBitmap(tile);
+        paintTileArea(mRepaintCanvas, mRepaintPaint,
+                mIndex, mSelectedId, level, tx, ty, area, null);
+        mRepaintCanvas.setBitmap(null);
+    }
+
+    /**
+     * Clears and paints an area of a tile. The area is expressed in the coordinates
+     * of this drawable. Painting stops as soon as {@code isStale}, if any, is true.
+     *
+     * @return whether the whole area was painted
+     */
+    private boolean paintTileArea(Canvas canvas, Paint paint,
+            ContributorsCloudIndex index, int selectedId,
+            int level, int tx, int ty, RectF area, BooleanSupplier isStale) {
+        canvas.save();
+        canvas.translate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+        canvas.scale(1 << level, 1 << level);
+        canvas.clipRect(area);
+        canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+
+        final ContributorsCloudLayout layout = index.getLayout();
+        final boolean painted = index.query(area.left, area.top, area.right, area.bottom,
+                glyph -> {
+                    if (isStale != null && isStale.getAsBoolean()) {
+                        return false;
+                    }
+                    paint.setColor(layout.getId(glyph) == selectedId
+                            ? mColorSelected : mColorForeground);
+                    layout.draw(canvas, paint, glyph);
+                    return true;
+                });
+        canvas.restore();
+        return painted;
+    }
+
+    private static int tilesPerSide(int level) {
+        return (BASE_SIZE / TILE_SIZE) << level;
+    }
+
+    private static long tileKey(int level, int tx, int ty) {
+        return ((long) level << 40) | ((long) tx << 20) | ty;
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return BASE_SIZE;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return BASE_SIZE;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mBitmapPaint.setAlpha(alpha);
+        for (RenderNode node : mDisplayLists) {
+            if (node != null) {
+                node.setAlpha(alpha / 255f);
+            }
+        }
+        mSelectionNode.setAlpha(alpha / 255f);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(@Nullable ColorFilter colorFilter) {
+        mBitmapPaint.setColorFilter(colorFilter);
+        mTextPaint.setColorFilter(colorFilter);
+        discardDisplayLists();
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
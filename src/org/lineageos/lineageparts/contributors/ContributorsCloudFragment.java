@@ -24,16 +24,15 @@ import android.animation.ObjectAnimator;
 import android.app.Activity;
 import android.app.ActivityManager;
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.Rect;
-import android.os.AsyncTask;
+import android.graphics.RectF;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -68,14 +67,28 @@ import org.lineageos.lineageparts.search.SearchIndexableRaw;
 import org.lineageos.lineageparts.search.Searchable;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ContributorsCloudFragment extends Fragment implements SearchView.OnQueryTextListener,
         SearchView.OnCloseListener, MenuItem.OnActionExpandListener, Searchable {
@@ -83,10 +96,19 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     private static final String TAG = "ContributorsCloud";
 
     private static final String DB_NAME = "contributors.db";
+    private static final String DB_HASH_SUFFIX = ".sha256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String SEARCH_INDEX_TABLE = "metadata_fts";
+    // Bump when the tables built at extraction change
+    private static final int DB_DERIVED_VERSION = 1;
+    // Extractions write and rename the same temporary file, so they run one at a time
+    private static final Object sExtractLock = new Object();
 
     private static final String STATE_SELECTED_CONTRIBUTOR = "state_selected_contributor";
 
     private ContributorsCloudViewController mViewController;
+    private ContributorsCloudDrawable mCloudDrawable;
+    private ContributorsCloudIndex mCloudIndex;
     private ImageView mImageView;
     private View mLoadingView;
     private View mFailedView;
@@ -94,15 +116,11 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     private ContributorsAdapter mSearchAdapter;
 
     private SQLiteDatabase mDatabase;
+    private Boolean mHasSearchIndex;
 
-    private int mTotalContributors;
-    private int mTotalCommits;
-    private long mLastUpdate;
+    private ContributorsCloudStats mStats = ContributorsCloudStats.EMPTY;
 
     private int mSelectedContributor = -1;
-    private String mContributorName;
-    private String mContributorNick;
-    private int mContributorCommits;
 
     private MenuItem mSearchMenuItem;
     private MenuItem mContributorInfoMenuItem;
@@ -111,12 +129,21 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
 
     private Handler mHandler;
 
+    // Loads happen on a single thread, and only the latest requested one is delivered
+    private final ExecutorService mLoaderExecutor = Executors.newSingleThreadExecutor();
+    private Future<?> mPendingLoad;
+    private volatile int mLoadGeneration;
+    // Searches run on the same thread, and only the latest one is delivered too
+    private Future<?> mPendingSearch;
+    private volatile int mSearchGeneration;
+    // The cloud, once read from the database
+    private volatile ViewInfo mViewInfo;
+
     private static final String KEY_PREFIX = "contributor_";
 
     private static class ViewInfo {
-        Bitmap mBitmap;
-        float mFocusX;
-        float mFocusY;
+        ContributorsCloudIndex mIndex;
+        ContributorsCloudStats mStats;
     }
 
     private static class ContributorsDataHolder {
@@ -158,67 +185,6 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         }
     }
 
-    private class ContributorCloudLoaderTask extends AsyncTask<Void, Void, Boolean> {
-        private ViewInfo mViewInfo;
-        private final boolean mNotify;
-        private final boolean mNavigate;
-
-        public ContributorCloudLoaderTask(boolean notify, boolean navigate) {
-            mNotify = notify;
-            mNavigate = navigate;
-        }
-
-        @Override
-        protected void onPreExecute() {
-            mLoadingView.setAlpha(1f);
-        }
-
-        @Override
-        protected Boolean doInBackground(Void... params) {
-            try {
-                loadContributorsInfo(getActivity());
-                loadUserInfo(getActivity());
-                mViewInfo = generateViewInfo(getActivity(), mSelectedContributor);
-                if (mViewInfo != null && mViewInfo.mBitmap != null) {
-                    return Boolean.TRUE;
-                }
-
-            } catch (Exception ex) {
-                Log.e(TAG, "Failed to generate cloud bitmap", ex);
-            }
-            return Boolean.FALSE;
-        }
-
-        @Override
-        protected void onPostExecute(Boolean result) {
-            if (result) {
-                mImageView.setImageBitmap(mViewInfo.mBitmap);
-                mViewController.update();
-                if (mNotify) {
-                    if (mNavigate) {
-                        onLoadCloudDataSuccess(mViewInfo.mFocusX, mViewInfo.mFocusY);
-                    } else {
-                        onLoadCloudDataSuccess(-1, -1);
-                    }
-                }
-            } else {
-                mImageView.setImageBitmap(null);
-                mViewController.update();
-                if (mViewInfo != null && mViewInfo.mBitmap != null) {
-                    mViewInfo.mBitmap.recycle();
-                }
-                if (mNotify) {
-                    onLoadCloudDataFailed();
-                }
-            }
-        }
-
-        @Override
-        protected void onCancelled() {
-            onLoadCloudDataFailed();
-        }
-    }
-
     public ContributorsCloudFragment() {
     }
 
@@ -235,6 +201,12 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mLoadGeneration++;
+        mSearchGeneration++;
+        mLoaderExecutor.shutdownNow();
+        if (mCloudDrawable != null) {
+            mCloudDrawable.release();
+        }
         if (mDatabase != null && mDatabase.isOpen()) {
             try {
                 mDatabase.close();
@@ -244,6 +216,16 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         }
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mViewController != null) {
+            writer.print(prefix);
+            writer.println("Cloud frame times:");
+            mViewController.getFrameTimeHistogram().dump(prefix + "  ", writer);
+        }
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -290,8 +272,7 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
                 mSelectedContributor = -1;
 
                 // Load the data from the database and fill the image
-                ContributorCloudLoaderTask task = new ContributorCloudLoaderTask(false, false);
-                task.execute();
+                loadCloud(false, false);
                 break;
 
             case R.id.contributor_info:
@@ -319,6 +300,33 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         mViewController.setMaximumScale(20f);
         mViewController.setMediumScale(7f);
 
+        final Context context = getActivity();
+        final Resources res = context.getResources();
+        TypedValue colorAccent = new TypedValue();
+        context.getTheme().resolveAttribute(com.android.internal.R.attr.colorAccent,
+                colorAccent, true);
+        int colorForeground = res.getColor(colorAccent.resourceId, context.getTheme());
+        int colorSelected = res.getColor(R.color.contributors_cloud_selected_color,
+                context.getTheme());
+        mCloudDrawable = new ContributorsCloudDrawable(colorForeground, colorSelected,
+                getTileCacheSize());
+        // Let capable GPUs draw the text directly, instead of going through bitmap tiles.
+        // Off unless the device enables it, as recording the cloud isn't measured yet
+        mCloudDrawable.setVectorMode(res.getBoolean(R.bool.config_contributorsCloudVectorMode)
+                && ActivityManager.isHighEndGfx());
+        mViewController.setOnMatrixChangeListener(rect ->
+                mCloudDrawable.setDisplayScale(rect.width() / mCloudDrawable.getIntrinsicWidth()));
+        mViewController.setOnPhotoTapListener((view, x, y) -> {
+            if (mCloudIndex == null) {
+                return;
+            }
+            int glyph = mCloudIndex.findContributorAt(x * mCloudDrawable.getIntrinsicWidth(),
+                    y * mCloudDrawable.getIntrinsicHeight());
+            if (glyph != -1) {
+                onContributorSelected(mCloudIndex.getLayout().getId(glyph), false);
+            }
+        });
+
         mSearchResults = v.findViewById(R.id.contributors_cloud_search_results);
         mSearchAdapter = new ContributorsAdapter(getActivity());
         mSearchResults.setAdapter(mSearchAdapter);
@@ -329,8 +337,7 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         });
 
         // Load the data from the database and fill the image
-        ContributorCloudLoaderTask task = new ContributorCloudLoaderTask(true, false);
-        task.execute();
+        loadCloud(true, false);
 
         return v;
     }
@@ -343,7 +350,7 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         if (args != null) {
             String c = args.getString(PartsActivity.EXTRA_FRAGMENT_ARG_KEY);
             if (c != null && c.startsWith(KEY_PREFIX)) {
-                onContributorSelected(Integer.parseInt(c.substring(KEY_PREFIX.length())));
+                onContributorSelected(Integer.parseInt(c.substring(KEY_PREFIX.length())), true);
                 args.remove(PartsActivity.EXTRA_FRAGMENT_ARG_KEY);
             }
         }
@@ -383,15 +390,42 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     }
 
     @Override
-    public boolean onQueryTextChange(String newText) {
-        List<ContributorsDataHolder> contributors = new ArrayList<>();
-        if (!TextUtils.isEmpty(newText) || newText.length() >= 3) {
-            contributors.addAll(performFilter(getActivity(), newText));
+    public boolean onQueryTextChange(final String newText) {
+        if (mPendingSearch != null) {
+            mPendingSearch.cancel(false);
+            mPendingSearch = null;
+        }
+        final int generation = ++mSearchGeneration;
+        if (TextUtils.isEmpty(newText)) {
+            onSearchResults(new ArrayList<>());
+            return true;
         }
+
+        final Context context = getActivity().getApplicationContext();
+        mPendingSearch = mLoaderExecutor.submit(() -> {
+            List<ContributorsDataHolder> contributors;
+            try {
+                contributors = performFilter(context, newText);
+            } catch (Exception ex) {
+                Log.e(TAG, "Failed to search contributors", ex);
+                contributors = new ArrayList<>();
+            }
+
+            final List<ContributorsDataHolder> results = contributors;
+            mHandler.post(() -> {
+                if (generation == mSearchGeneration) {
+                    mPendingSearch = null;
+                    onSearchResults(results);
+                }
+            });
+        });
+        return true;
+    }
+
+    private void onSearchResults(List<ContributorsDataHolder> contributors) {
         mSearchAdapter.clear();
         mSearchAdapter.addAll(contributors);
         mSearchAdapter.notifyDataSetChanged();
-        return true;
     }
 
     private void showMenuItems(boolean visible) {
@@ -412,6 +446,85 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         }
     }
 
+    /**
+     * Requests the cloud and the selected contributor information to be loaded. A newer
+     * request supersedes any request which hasn't been delivered yet: a queued request
+     * is dropped, and the result of a running one is ignored.
+     */
+    private void loadCloud(final boolean notify, final boolean navigate) {
+        if (mPendingLoad != null) {
+            mPendingLoad.cancel(false);
+        }
+        final int generation = ++mLoadGeneration;
+        final Context context = getActivity().getApplicationContext();
+
+        mLoadingView.setAlpha(1f);
+        mPendingLoad = mLoaderExecutor.submit(() -> {
+            boolean result = false;
+            try {
+                // The cloud and the stats only need to be read once (even if the request
+                // which read them went stale), selection changes are repainted by the
+                // drawable itself
+                if (mViewInfo == null) {
+                    mViewInfo = generateViewInfo(context);
+                }
+                result = mViewInfo != null;
+            } catch (Exception ex) {
+                Log.e(TAG, "Failed to load cloud data", ex);
+            }
+
+            final boolean success = result;
+            final ViewInfo viewInfo = mViewInfo;
+            mHandler.post(() -> {
+                if (generation == mLoadGeneration) {
+                    mPendingLoad = null;
+                    onCloudLoaded(success, viewInfo, notify, navigate);
+                }
+            });
+        });
+    }
+
+    private void onCloudLoaded(boolean result, ViewInfo viewInfo, boolean notify,
+            boolean navigate) {
+        if (!result) {
+            mImageView.setImageDrawable(null);
+            mViewController.update();
+            if (notify) {
+                onLoadCloudDataFailed();
+            }
+            return;
+        }
+
+        final boolean newCloud = mCloudIndex != viewInfo.mIndex;
+        if (newCloud) {
+            mCloudIndex = viewInfo.mIndex;
+            mStats = viewInfo.mStats;
+            mCloudDrawable.setCloud(viewInfo.mIndex, mSelectedContributor);
+            if (mImageView.getDrawable() != mCloudDrawable) {
+                mImageView.setImageDrawable(mCloudDrawable);
+            }
+            mViewController.update();
+        } else {
+            mCloudDrawable.setSelectedContributor(mSelectedContributor);
+        }
+        if (notify) {
+            int glyph = navigate ? mCloudIndex.findGlyph(mSelectedContributor) : -1;
+            if (glyph != -1) {
+                // Zoom out, then map the contributor to view coordinates
+                if (!newCloud) {
+                    mViewController.update();
+                }
+                RectF bounds = new RectF();
+                mCloudIndex.getLayout().getBounds(glyph, bounds);
+                float[] focus = new float[] {bounds.centerX(), bounds.centerY()};
+                mViewController.getDrawMatrix().mapPoints(focus);
+                onLoadCloudDataSuccess(focus[0], focus[1]);
+            } else {
+                onLoadCloudDataSuccess(-1, -1);
+            }
+        }
+    }
+
     private void onLoadCloudDataSuccess(float focusX, float focusY) {
         animateFadeOutFadeIn(mLoadingView.getVisibility() == View.VISIBLE
                 ? mLoadingView : mSearchResults, mImageView);
@@ -470,11 +583,7 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         }
     }
 
-    private synchronized ViewInfo generateViewInfo(Context context, int selectedId) {
-        Bitmap bitmap = null;
-        float focusX = -1, focusY = -1;
-        final Resources res = context.getResources();
-
+    private ViewInfo generateViewInfo(Context context) {
         // Open the database
         SQLiteDatabase db = getDatabase(context, true);
         if (db == null) {
@@ -497,97 +606,19 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
             // We don't have a valid cursor reference
             return null;
         }
+        ContributorsCloudLayout layout;
         try {
-            TypedValue colorAccent = new TypedValue();
-            context.getTheme().resolveAttribute(com.android.internal.R.attr.colorAccent,
-                    colorAccent, true);
-            int colorForeground = res.getColor(colorAccent.resourceId, context.getTheme());
-            int colorSelected = res.getColor(R.color.contributors_cloud_selected_color,
-                    context.getTheme());
-            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DITHER_FLAG);
-
-            // Create a bitmap large enough to hold the cloud (use large bitmap when available)
-            int bsize = hasLargeHeap() ? 2048 : 1024;
-            bitmap = Bitmap.createBitmap(bsize, bsize, Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(bitmap);
-
-            // Draw every contributor name
-            while (c.moveToNext()) {
-                int id = c.getInt(c.getColumnIndexOrThrow("id"));
-
-                String name = c.getString(c.getColumnIndexOrThrow("name"));
-                float x = translate(c.getFloat(c.getColumnIndexOrThrow("x")), osize, bsize);
-                float y = translate(c.getFloat(c.getColumnIndexOrThrow("y")), osize, bsize);
-                int r = c.getInt(c.getColumnIndexOrThrow("r"));
-                float fs = translate(c.getFloat(c.getColumnIndexOrThrow("fs")), osize, bsize);
-                if (id < 0) {
-                    y -= translate(fs, osize, bsize);
-                }
-
-                // Choose the correct paint
-                paint.setColor(selectedId == id ? colorSelected : colorForeground);
-                paint.setTextSize(fs);
-
-                // Check text rotation
-                float w = 0f, h = 0f;
-                if (selectedId == id || r != 0) {
-                    Rect bounds = new Rect();
-                    paint.getTextBounds(name, 0, name.length(), bounds);
-                    h = bounds.height();
-                }
-                if (selectedId == id || r == -1) {
-                    w = paint.measureText(name);
-                }
-                if (r == 0) {
-                    // Horizontal
-                    canvas.drawText(name, x, y, paint);
-                } else {
-                    canvas.save();
-                    if (r == -1) {
-                        // Vertical (-90 rotation)
-                        canvas.translate(h, w - h);
-                        canvas.rotate(-90, x, y);
-                    } else {
-                        // Vertical (+90 rotation)
-                        canvas.translate(h/2, -h);
-                        canvas.rotate(90, x, y);
-                    }
-                    canvas.drawText(name, x, y, paint);
-                    canvas.restore();
-                }
-
-                // Calculate focus
-                if (selectedId == id) {
-                    int iw = mImageView.getWidth();
-                    int ih = mImageView.getHeight();
-                    int cx = iw / 2;
-                    int cy = ih / 2;
-                    int cbx = bsize / 2;
-                    int cby = bsize / 2;
-                    float cw;
-                    float ch;
-                    if (r == 0) {
-                        cw = translate(w, bsize, Math.min(iw, ih)) / 2;
-                        ch = translate(h, bsize, Math.min(iw, ih)) / 2;
-                    } else {
-                        cw = translate(h, bsize, Math.min(iw, ih)) / 2;
-                        ch = translate(w, bsize, Math.min(iw, ih)) / 2;
-                    }
-
-                    focusX = cx + translate(x - cbx, bsize, iw) + cw;
-                    focusY = cy + translate(y - cby, bsize, ih) + ch;
-                }
-            }
-
+            // Read and measure every contributor name. Drawing is deferred to the cloud
+            // drawable, which only renders the tiles that are actually visible
+            layout = ContributorsCloudLayout.read(c, osize);
         } finally {
             c.close();
         }
 
-        // Return the bitmap
+        // Index the glyphs, for culling and hit-testing
         ViewInfo viewInfo = new ViewInfo();
-        viewInfo.mBitmap = bitmap;
-        viewInfo.mFocusX = focusX;
-        viewInfo.mFocusY = focusY;
+        viewInfo.mIndex = ContributorsCloudIndex.build(layout);
+        viewInfo.mStats = ContributorsCloudStats.read(db);
         return viewInfo;
     }
 
@@ -614,7 +645,7 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
                 }
 
                 if (retryCopyIfOpenFails) {
-                    extractContributorsCloudDatabase(context);
+                    extractContributorsCloudDatabase(context, true);
                     mDatabase = getDatabase(context, false);
                 }
             }
@@ -625,78 +656,19 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         return mDatabase;
     }
 
-    private void loadContributorsInfo(Context context) {
-        mTotalContributors = -1;
-        mTotalCommits = -1;
-        mLastUpdate = -1;
-
-        // Open the database
-        SQLiteDatabase db = getDatabase(context, true);
-        if (db == null) {
-            // We don't have a valid database reference
-            return;
-        }
-
-        // Total contributors
-        Cursor c = db.rawQuery("select count(*) from metadata where id > 0;", null);
-        if (c == null || !c.moveToFirst()) {
-            // We don't have a valid cursor reference
-            return;
-        }
-        mTotalContributors = c.getInt(0);
-        c.close();
-
-        // Total commits
-        c = db.rawQuery("select sum(commits) from metadata where id > 0;", null);
-        if (c == null || !c.moveToFirst()) {
-            // We don't have a valid cursor reference
-            return;
-        }
-        mTotalCommits = c.getInt(0);
-        c.close();
-
-        // Last update
-        c = db.rawQuery("select value from info where key = ?;", new String[]{"date"});
-        if (c == null || !c.moveToFirst()) {
-            // We don't have a valid cursor reference
-            return;
-        }
-        mLastUpdate = c.getLong(0);
-        c.close();
-    }
-
-    private void loadUserInfo(Context context) {
-        // Open the database
-        SQLiteDatabase db = getDatabase(context, true);
-        if (db == null) {
-            // We don't have a valid database reference
-            return;
-        }
-
-        // Total contributors
-        String[] args = new String[]{String.valueOf(mSelectedContributor)};
-        Cursor c = db.rawQuery("select m1.name, m1.username, m1.commits " +
-                               "from metadata as m1 where m1.id = ?;", args);
-        if (c == null || !c.moveToFirst()) {
-            // We don't have a valid cursor reference
-            return;
-        }
-        mContributorName = c.getString(0);
-        mContributorNick = c.getString(1);
-        mContributorCommits = c.getInt(2);
-        c.close();
-    }
-
     private void showUserInfo(Context context) {
         NumberFormat nf = NumberFormat.getNumberInstance(Locale.getDefault());
-        String name = mContributorName != null ? mContributorName : "-";
-        String nick = mContributorNick != null ? mContributorNick : "-";
-        String commits = mContributorName != null ? nf.format(mContributorCommits) : "-";
+        int contributor = mStats.find(mSelectedContributor);
+        String name = contributor != -1 ? mStats.getName(contributor) : "-";
+        String nick = contributor != -1 ? mStats.getNick(contributor) : "-";
+        String commits = contributor != -1 ? nf.format(mStats.getCommits(contributor)) : "-";
+        String rank = contributor != -1 ? nf.format(mStats.getRank(contributor)) : "-";
 
         AlertDialog.Builder builder = new AlertDialog.Builder(context);
         builder.setTitle(R.string.contributor_info_menu);
         builder.setMessage(Html.fromHtml(getString(R.string.contributor_info_msg,
-                name, nick, commits), Html.FROM_HTML_MODE_LEGACY));
+                name, nick, commits) + getString(R.string.contributor_info_rank_msg, rank),
+                Html.FROM_HTML_MODE_LEGACY));
         builder.setPositiveButton(android.R.string.ok, null);
         AlertDialog dialog = builder.create();
         dialog.show();
@@ -706,17 +678,17 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         NumberFormat nf = NumberFormat.getNumberInstance(Locale.getDefault());
         java.text.DateFormat df = DateFormat.getLongDateFormat(context);
         java.text.DateFormat tf = DateFormat.getTimeFormat(context);
-        String totalContributors = mTotalContributors != -1
-                ? nf.format(mTotalContributors) : "-";
-        String totalCommits = mTotalCommits != -1
-                ? nf.format(mTotalCommits) : "-";
-        String lastUpdate = mLastUpdate != -1
-                ? df.format(mLastUpdate) + " " + tf.format(mLastUpdate) : "-";
+        int totalContributors = mStats.getTotalContributors();
+        int totalCommits = mStats.getTotalCommits();
+        long lastUpdate = mStats.getLastUpdate();
 
         AlertDialog.Builder builder = new AlertDialog.Builder(context);
         builder.setTitle(R.string.contributions_info_menu);
         builder.setMessage(Html.fromHtml(getString(R.string.contributions_info_msg,
-                totalContributors, totalCommits, lastUpdate), Html.FROM_HTML_MODE_LEGACY));
+                totalContributors != -1 ? nf.format(totalContributors) : "-",
+                totalCommits != -1 ? nf.format(totalCommits) : "-",
+                lastUpdate != -1 ? df.format(lastUpdate) + " " + tf.format(lastUpdate) : "-"),
+                Html.FROM_HTML_MODE_LEGACY));
         builder.setPositiveButton(android.R.string.ok, null);
         AlertDialog dialog = builder.create();
         dialog.show();
@@ -730,11 +702,23 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
             return new ArrayList<>();
         }
 
-        // Total contributors
-        String[] args = new String[]{query.replaceAll("\\|", "")};
-        Cursor c = db.rawQuery("select id, name || case when username is null then '' " +
-                "else ' <'||username||'>' end contributor from metadata where lower(filter) like " +
-                "lower('%' || ? || '%') and id > 0 order by commits desc", args);
+        Cursor c;
+        if (hasSearchIndex(db)) {
+            // Prefix match every word of the query against the full-text index
+            String match = buildSearchIndexQuery(query);
+            if (match == null) {
+                return new ArrayList<>();
+            }
+            c = db.rawQuery("select m.id, m.name || case when m.username is null then '' " +
+                    "else ' <'||m.username||'>' end contributor from metadata_fts f " +
+                    "join metadata m on m.rowid = f.docid where metadata_fts match ? " +
+                    "and m.id > 0 order by m.commits desc", new String[]{match});
+        } else {
+            String[] args = new String[]{query.replaceAll("\\|", "")};
+            c = db.rawQuery("select id, name || case when username is null then '' " +
+                    "else ' <'||username||'>' end contributor from metadata where lower(filter) " +
+                    "like lower('%' || ? || '%') and id > 0 order by commits desc", args);
+        }
         if (c == null) {
             // We don't have a valid cursor reference
             return new ArrayList<>();
@@ -750,53 +734,257 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         return results;
     }
 
+    private boolean hasSearchIndex(SQLiteDatabase db) {
+        if (mHasSearchIndex == null) {
+            try (Cursor c = db.rawQuery("select 1 from sqlite_master where name = ?;",
+                    new String[]{SEARCH_INDEX_TABLE})) {
+                mHasSearchIndex = c != null && c.moveToFirst();
+            } catch (SQLException ex) {
+                mHasSearchIndex = false;
+            }
+        }
+        return mHasSearchIndex;
+    }
+
+    private static String buildSearchIndexQuery(String query) {
+        // Only keep letters and digits, so the user can't inject FTS operators.
+        // Lowercase terms are never treated as AND/OR/NOT operators.
+        StringBuilder match = new StringBuilder();
+        for (String term : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!term.isEmpty()) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(term).append('*');
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
     private void onContributorSelected(ContributorsDataHolder contributor) {
-        onContributorSelected(contributor.mId);
+        onContributorSelected(contributor.mId, true);
     }
 
-    private void onContributorSelected(int contributorId) {
+    private void onContributorSelected(int contributorId, boolean navigate) {
         mSelectedContributor = contributorId;
-        ContributorCloudLoaderTask task = new ContributorCloudLoaderTask(true, true);
-        task.execute();
+        mCloudDrawable.setSelectedContributor(contributorId);
+        loadCloud(true, navigate);
         if (mSearchMenuItem != null) {
             mSearchMenuItem.collapseActionView();
         }
     }
 
-    private boolean hasLargeHeap() {
+    private int getTileCacheSize() {
+        // Use up to 1/8th of the available heap for the cloud tiles
         ActivityManager am = getActivity().getSystemService(ActivityManager.class);
-        return am.getMemoryClass() >= 96;
+        return am.getMemoryClass() * 1024 * 1024 / 8;
     }
 
-    private float translate(float v, int ssize, int dsize) {
-        return (v * dsize) / ssize;
+
+    /**
+     * Extracts the contributors database from the assets, unless the extracted copy
+     * already matches them. This does disk I/O, so don't call it from the main thread.
+     */
+    public static void extractContributorsCloudDatabase(Context context) {
+        extractContributorsCloudDatabase(context, false);
     }
 
+    private static void extractContributorsCloudDatabase(Context context, boolean force) {
+        synchronized (sExtractLock) {
+            extractContributorsCloudDatabaseLocked(context, force);
+        }
+    }
 
-    public static void extractContributorsCloudDatabase(Context context) {
-        final int BUFFER = 1024;
-        InputStream is = null;
-        OutputStream os;
+    private static void extractContributorsCloudDatabaseLocked(Context context, boolean force) {
         File databasePath = context.getDatabasePath(DB_NAME);
+        File hashPath = new File(databasePath.getPath() + DB_HASH_SUFFIX);
+
+        // The stored state is the key of the apk the asset was checked against, then
+        // the hash of the asset. Hashing the asset is only needed when the apk changed.
+        final String key = getAssetKey(context);
+        final String[] stored = readDatabaseHash(hashPath);
+        if (!force && key != null && databasePath.exists() && key.equals(stored[0])) {
+            return;
+        }
+
+        // Skip the copy if the asset didn't change since it was last extracted
+        String hash = computeAssetHash(context);
+        if (hash != null) {
+            // Also extract again when the tables derived from the asset change
+            hash += "-" + DB_DERIVED_VERSION;
+        }
+        if (!force && hash != null && databasePath.exists() && hash.equals(stored[1])) {
+            writeDatabaseHash(hashPath, key, hash);
+            return;
+        }
+
+        hashPath.delete();
+        if (!copyDatabaseAsset(context, databasePath)) {
+            return;
+        }
+        // Only remember the asset once everything derived from it was built, so a
+        // failed build is attempted again
+        if (buildDerivedTables(databasePath) && hash != null) {
+            writeDatabaseHash(hashPath, key, hash);
+        }
+    }
+
+    private static String getAssetKey(Context context) {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0);
+            return info.getLongVersionCode() + ":" + info.lastUpdateTime
+                    + "-" + DB_DERIVED_VERSION;
+        } catch (PackageManager.NameNotFoundException ex) {
+            return null;
+        }
+    }
+
+    private static String computeAssetHash(Context context) {
+        try (InputStream is = context.getAssets().open(DB_NAME, AssetManager.ACCESS_STREAMING)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] data = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = is.read(data)) != -1) {
+                md.update(data, 0, read);
+            }
+            return new BigInteger(1, md.digest()).toString(16);
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            Log.w(TAG, "Failed to hash contributors database asset", ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return the stored apk key and asset hash, either of which may be null
+     */
+    private static String[] readDatabaseHash(File hashPath) {
+        final String[] stored = new String[2];
         try {
-            databasePath.getParentFile().mkdir();
-            is = context.getResources().getAssets().open(DB_NAME, AssetManager.ACCESS_BUFFER);
-            os = new FileOutputStream(databasePath);
-            int read = -1;
-            byte[] data = new byte[BUFFER];
-            while ((read = is.read(data, 0, BUFFER)) != -1) {
-                os.write(data, 0, read);
+            final String value = new String(Files.readAllBytes(hashPath.toPath()),
+                    StandardCharsets.US_ASCII);
+            final int separator = value.indexOf('\n');
+            if (separator >= 0) {
+                stored[0] = value.substring(0, separator);
+                stored[1] = value.substring(separator + 1);
+            } else {
+                // Only the hash was stored
+                stored[1] = value;
             }
         } catch (IOException ex) {
-            Log.e(TAG, "Failed to extract contributors database");
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException ex) {
-                    // Ignore
+            // Nothing stored
+        }
+        return stored;
+    }
+
+    private static void writeDatabaseHash(File hashPath, String key, String hash) {
+        try (FileOutputStream os = new FileOutputStream(hashPath)) {
+            os.write(((key != null ? key : "") + "\n" + hash)
+                    .getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to store contributors database hash", ex);
+        }
+    }
+
+    private static boolean copyDatabaseAsset(Context context, File databasePath) {
+        // Copy to a temporary file first, so readers never see a partial database
+        databasePath.getParentFile().mkdir();
+        File tmpPath = new File(databasePath.getPath() + ".tmp");
+        try (FileChannel dst = new FileOutputStream(tmpPath).getChannel()) {
+            AssetManager assets = context.getAssets();
+            try (AssetFileDescriptor afd = assets.openFd(DB_NAME);
+                 FileChannel src = new FileInputStream(afd.getFileDescriptor()).getChannel()) {
+                // Uncompressed asset: let the kernel copy straight from the apk
+                final long start = afd.getStartOffset();
+                final long length = afd.getLength();
+                long position = 0;
+                while (position < length) {
+                    position += src.transferTo(start + position, length - position, dst);
                 }
+            } catch (FileNotFoundException ex) {
+                // Compressed asset, it has to be streamed
+                try (ReadableByteChannel src = Channels.newChannel(
+                        assets.open(DB_NAME, AssetManager.ACCESS_STREAMING))) {
+                    long position = 0;
+                    long read;
+                    while ((read = dst.transferFrom(src, position, BUFFER_SIZE)) > 0) {
+                        position += read;
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to extract contributors database", ex);
+            tmpPath.delete();
+            return false;
+        }
+
+        if (!tmpPath.renameTo(databasePath)) {
+            Log.e(TAG, "Failed to extract contributors database: cannot rename "
+                    + tmpPath);
+            tmpPath.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether all the derived tables were built
+     */
+    private static boolean buildDerivedTables(File databasePath) {
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(databasePath.getAbsolutePath(),
+                    null, SQLiteDatabase.OPEN_READWRITE);
+            final boolean searchIndexBuilt = buildSearchIndex(db);
+            final boolean statsBuilt = buildStats(db);
+            return searchIndexBuilt && statsBuilt;
+        } catch (SQLException ex) {
+            Log.e(TAG, "Failed to open contributors database", ex);
+            return false;
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    private static boolean buildSearchIndex(SQLiteDatabase db) {
+        try {
+            db.beginTransaction();
+            try {
+                // Index the filter column (names and nicks) with prefix support. The
+                // index uses the metadata table as content, so docid is the row id.
+                db.execSQL("drop table if exists " + SEARCH_INDEX_TABLE + ";");
+                db.execSQL("create virtual table " + SEARCH_INDEX_TABLE + " using fts4(" +
+                        "content=\"metadata\", filter, tokenize=unicode61, prefix=\"2,3\");");
+                db.execSQL("insert into " + SEARCH_INDEX_TABLE + "(" + SEARCH_INDEX_TABLE +
+                        ") values('rebuild');");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
+            return true;
+        } catch (SQLException ex) {
+            // Search falls back to scanning the metadata table
+            Log.e(TAG, "Failed to build contributors search index", ex);
+            return false;
+        }
+    }
+
+    private static boolean buildStats(SQLiteDatabase db) {
+        try {
+            db.beginTransaction();
+            try {
+                ContributorsCloudStats.build(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return true;
+        } catch (SQLException ex) {
+            // The info dialogs show no stats
+            Log.e(TAG, "Failed to build contributors stats", ex);
+            return false;
         }
     }
 
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2022 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineageparts.contributors;
+
+import android.util.SparseIntArray;
+
+import java.util.BitSet;
+
+/**
+ * A uniform grid over the bounds of the contributors cloud glyphs, used to resolve taps
+ * and to find the glyphs which intersect a given area without scanning all of them.
+ * Glyph bounds are expressed in the coordinates of {@link ContributorsCloudDrawable}.
+ * The index is immutable once built, so it can be queried from any thread.
+ */
+class ContributorsCloudIndex {
+
+    private static final int GRID_SIZE = 32;
+    private static final float CELL_SIZE =
+            (float) ContributorsCloudDrawable.BASE_SIZE / GRID_SIZE;
+
+    interface Visitor {
+        /**
+         * @return false to stop visiting glyphs
+         */
+        boolean visit(int glyph);
+    }
+
+    private final ContributorsCloudLayout mLayout;
+    // Glyphs of cell n are mCellGlyphs[mCellStart[n]..mCellStart[n + 1]]
+    private final int[] mCellStart;
+    private final int[] mCellGlyphs;
+    // Contributor id to glyph
+    private final SparseIntArray mIds;
+    // Glyphs found by a query, per thread so that queries can run concurrently
+    private final ThreadLocal<BitSet> mQueryGlyphs;
+
+    private ContributorsCloudIndex(ContributorsCloudLayout layout,
+            int[] cellStart, int[] cellGlyphs, SparseIntArray ids) {
+        mLayout = layout;
+        mCellStart = cellStart;
+        mCellGlyphs = cellGlyphs;
+        mIds = ids;
+        mQueryGlyphs = ThreadLocal.withInitial(() -> new BitSet(layout.getCount()));
+    }
+
+    static ContributorsCloudIndex build(ContributorsCloudLayout layout) {
+        final int count = layout.getCount();
+        final SparseIntArray ids = new SparseIntArray(count);
+        for (int i = 0; i < count; i++) {
+            ids.put(layout.getId(i), i);
+        }
+
+        // Count the glyphs of every cell, then fill them in
+        final int[] cellStart = new int[GRID_SIZE * GRID_SIZE + 1];
+        for (int i = 0; i < count; i++) {
+            final int l = cell(layout.getLeft(i)), t = cell(layout.getTop(i));
+            final int r = cell(layout.getRight(i)), b = cell(layout.getBottom(i));
+            for (int y = t; y <= b; y++) {
+                for (int x = l; x <= r; x++) {
+                    cellStart[y * GRID_SIZE + x + 1]++;
+                }
+            }
+        }
+        for (int n = 1; n < cellStart.length; n++) {
+            cellStart[n] += cellStart[n - 1];
+        }
+        final int[] cellGlyphs = new int[cellStart[cellStart.length - 1]];
+        final int[] fill = new int[GRID_SIZE * GRID_SIZE];
+        for (int i = 0; i < count; i++) {
+            final int l = cell(layout.getLeft(i)), t = cell(layout.getTop(i));
+            final int r = cell(layout.getRight(i)), b = cell(layout.getBottom(i));
+            for (int y = t; y <= b; y++) {
+                for (int x = l; x <= r; x++) {
+                    final int n = y * GRID_SIZE + x;
+                    cellGlyphs[cellStart[n] + fill[n]++] = i;
+                }
+            }
+        }
+
+        return new ContributorsCloudIndex(layout, cellStart, cellGlyphs, ids);
+    }
+
+    /**
+     * Returns the glyph of the passed contributor, or -1 if there is none.
+     */
+    int findGlyph(int contributorId) {
+        return mIds.get(contributorId, -1);
+    }
+
+    ContributorsCloudLayout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * Visits every glyph whose bounds intersect the passed area, exactly once and in
+     * drawing order, so that overlapping glyphs stack as in the full cloud.
+     *
+     * @return false if the visitor stopped the query
+     */
+    boolean query(float left, float top, float right, float bottom, Visitor visitor) {
+        // Cells list their glyphs by cell, so collect the matches first and visit
+        // them by index; the set also drops glyphs spanning several cells
+        final BitSet glyphs = mQueryGlyphs.get();
+        glyphs.clear();
+        final int l = cell(left), t = cell(top), r = cell(right), b = cell(bottom);
+        for (int y = t; y <= b; y++) {
+            for (int x = l; x <= r; x++) {
+                final int n = y * GRID_SIZE + x;
+                for (int i = mCellStart[n]; i < mCellStart[n + 1]; i++) {
+                    final int glyph = mCellGlyphs[i];
+                    if (mLayout.getLeft(glyph) <= right && mLayout.getRight(glyph) >= left
+                            && mLayout.getTop(glyph) <= bottom
+                            && mLayout.getBottom(glyph) >= top) {
+                        glyphs.set(glyph);
+                    }
+                }
+            }
+        }
+        for (int glyph = glyphs.nextSetBit(0); glyph >= 0;
+                glyph = glyphs.nextSetBit(glyph + 1)) {
+            if (!visitor.visit(glyph)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the topmost contributor glyph at the passed point, or -1 if there is none.
+     */
+    int findContributorAt(float px, float py) {
+        final int x = cell(px), y = cell(py);
+        final int n = y * GRID_SIZE + x;
+        int found = -1;
+        for (int i = mCellStart[n]; i < mCellStart[n + 1]; i++) {
+            final int glyph = mCellGlyphs[i];
+            if (mLayout.getId(glyph) > 0
+                    && px >= mLayout.getLeft(glyph) && px <= mLayout.getRight(glyph)
+                    && py >= mLayout.getTop(glyph) && py <= mLayout.getBottom(glyph)) {
+                // Glyphs are drawn in order, so the last match is on top
+                found = Math.max(found, glyph);
+            }
+        }
+        return found;
+    }
+
+    private static int cell(float v) {
+        return Math.max(0, Math.min(GRID_SIZE - 1, (int) (v / CELL_SIZE)));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2022 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineageparts.contributors;
+
+import android.database.Cursor;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * The layout of every glyph of the contributors cloud, measured once when the cloud
+ * is read and stored in flat arrays. Positions, sizes and bounds are expressed in the
+ * coordinates of {@link ContributorsCloudDrawable}, so drawing a glyph at any scale
+ * doesn't need any text measurement.
+ */
+class ContributorsCloudLayout {
+
+    private static final int ROTATION_NONE = 0;
+    private static final int ROTATION_CCW = -1;
+
+    private final int mCount;
+    private final int[] mIds;
+    private final String[] mNames;
+    private final float[] mFontSizes;
+    // Text rotation in degrees
+    private final short[] mRotations;
+    // Text origin, once the rotation has been applied
+    private final float[] mOrigins;
+    // left, top, right, bottom of every glyph
+    private final float[] mBounds;
+
+    private ContributorsCloudLayout(int count) {
+        mCount = count;
+        mIds = new int[count];
+        mNames = new String[count];
+        mFontSizes = new float[count];
+        mRotations = new short[count];
+        mOrigins = new float[count * 2];
+        mBounds = new float[count * 4];
+    }
+
+    /**
+     * Reads and measures the glyphs from a cursor over the id, name, x, y, r and fs
+     * columns of the metadata table. Coordinates and font sizes of the table are
+     * expressed in a square of {@code origSize} pixels.
+     */
+    static ContributorsCloudLayout read(Cursor c, int origSize) {
+        final int idColumn = c.getColumnIndexOrThrow("id");
+        final int nameColumn = c.getColumnIndexOrThrow("name");
+        final int xColumn = c.getColumnIndexOrThrow("x");
+        final int yColumn = c.getColumnIndexOrThrow("y");
+        final int rColumn = c.getColumnIndexOrThrow("r");
+        final int fsColumn = c.getColumnIndexOrThrow("fs");
+
+        final float scale = (float) ContributorsCloudDrawable.BASE_SIZE / origSize;
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        final Rect textBounds = new Rect();
+        final Matrix m = new Matrix();
+        final RectF rect = new RectF();
+        final float[] origin = new float[2];
+
+        ContributorsCloudLayout layout = new ContributorsCloudLayout(c.getCount());
+        int i = 0;
+        while (i < layout.mCount && c.moveToNext()) {
+            final int id = c.getInt(idColumn);
+            final String name = c.getString(nameColumn);
+            final float x = c.getFloat(xColumn);
+            final int r = c.getInt(rColumn);
+            final float fs = c.getFloat(fsColumn);
+            float y = c.getFloat(yColumn);
+            if (id < 0) {
+                y -= fs;
+            }
+
+            paint.setTextSize(fs);
+            paint.getTextBounds(name, 0, name.length(), textBounds);
+            final float w = paint.measureText(name);
+            final float h = textBounds.height();
+
+            // Text is drawn at (x, y), rotated around that point and then translated
+            m.reset();
+            if (r == ROTATION_CCW) {
+                // Vertical (-90 rotation)
+                m.setRotate(-90, x, y);
+                m.postTranslate(h, w - h);
+            } else if (r != ROTATION_NONE) {
+                // Vertical (+90 rotation)
+                m.setRotate(90, x, y);
+                m.postTranslate(h / 2, -h);
+            }
+            m.postScale(scale, scale);
+
+            origin[0] = x;
+            origin[1] = y;
+            m.mapPoints(origin);
+            rect.set(textBounds);
+            rect.offset(x, y);
+            m.mapRect(rect);
+
+            layout.mIds[i] = id;
+            layout.mNames[i] = name;
+            layout.mFontSizes[i] = fs * scale;
+            layout.mRotations[i] = (short) (r == ROTATION_NONE ? 0 : r == ROTATION_CCW ? -90 : 90);
+            layout.mOrigins[i * 2] = origin[0];
+            layout.mOrigins[i * 2 + 1] = origin[1];
+            layout.mBounds[i * 4] = rect.left;
+            layout.mBounds[i * 4 + 1] = rect.top;
+            layout.mBounds[i * 4 + 2] = rect.right;
+            layout.mBounds[i * 4 + 3] = rect.bottom;
+            i++;
+        }
+        return layout;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    int getId(int glyph) {
+        return mIds[glyph];
+    }
+
+    float getFontSize(int glyph) {
+        return mFontSizes[glyph];
+    }
+
+    float getLeft(int glyph) {
+        return mBounds[glyph * 4];
+    }
+
+    float getTop(int glyph) {
+        return mBounds[glyph * 4 + 1];
+    }
+
+    float getRight(int glyph) {
+        return mBounds[glyph * 4 + 2];
+    }
+
+    float getBottom(int glyph) {
+        return mBounds[glyph * 4 + 3];
+    }
+
+    void getBounds(int glyph, RectF out) {
+        out.set(mBounds[glyph * 4], mBounds[glyph * 4 + 1],
+                mBounds[glyph * 4 + 2], mBounds[glyph * 4 + 3]);
+    }
+
+    void draw(Canvas canvas, Paint paint, int glyph) {
+        paint.setTextSize(mFontSizes[glyph]);
+        final float x = mOrigins[glyph * 2];
+        final float y = mOrigins[glyph * 2 + 1];
+        if (mRotations[glyph] == 0) {
+            // Horizontal
+            canvas.drawText(mNames[glyph], x, y, paint);
+        } else {
+            canvas.save();
+            canvas.translate(x, y);
+            canvas.rotate(mRotations[glyph]);
+            canvas.drawText(mNames[glyph], 0, 0, paint);
+            canvas.restore();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2022 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineageparts.contributors;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * A snapshot of the contributors statistics. The statistics are computed once, when the
+ * database is extracted, into the summary tables, and then read in a single pass, so
+ * showing them doesn't need any database access. The snapshot is immutable.
+ */
+class ContributorsCloudStats {
+
+    private static final String TAG = "ContributorsCloudStats";
+
+    private static final String SUMMARY_TABLE = "stats_summary";
+    private static final String CONTRIBUTORS_TABLE = "stats_contributors";
+
+    static final ContributorsCloudStats EMPTY =
+            new ContributorsCloudStats(-1, -1, -1, 0);
+
+    private final int mTotalContributors;
+    private final int mTotalCommits;
+    private final long mLastUpdate;
+
+    // Contributors, sorted by id
+    private final int mCount;
+    private final int[] mIds;
+    private final String[] mNames;
+    private final String[] mNicks;
+    private final int[] mCommits;
+    private final int[] mRanks;
+
+    private ContributorsCloudStats(int totalContributors, int totalCommits, long lastUpdate,
+            int count) {
+        mTotalContributors = totalContributors;
+        mTotalCommits = totalCommits;
+        mLastUpdate = lastUpdate;
+        mCount = count;
+        mIds = new int[count];
+        mNames = new String[count];
+        mNicks = new String[count];
+        mCommits = new int[count];
+        mRanks = new int[count];
+    }
+
+    /**
+     * (Re)creates the summary tables from the metadata and info tables.
+     */
+    static void build(SQLiteDatabase db) {
+        db.execSQL("drop table if exists " + SUMMARY_TABLE + ";");
+        db.execSQL("drop table if exists " + CONTRIBUTORS_TABLE + ";");
+        db.execSQL("create table " + SUMMARY_TABLE + " (contributors integer, " +
+                "commits integer, last_update integer);");
+        db.execSQL("insert into " + SUMMARY_TABLE + " select count(*), sum(commits), " +
+                "(select cast(value as integer) from info where key = 'date') " +
+                "from metadata where id > 0;");
+        db.execSQL("create table " + CONTRIBUTORS_TABLE + " (id integer primary key, " +
+                "name text, username text, commits integer, rank integer);");
+
+        // Rank in a single pass over the contributors sorted by commits, where
+        // contributors with as many commits share the same rank
+        SQLiteStatement insert = db.compileStatement("insert into " + CONTRIBUTORS_TABLE +
+                " (id, name, username, commits, rank) values (?, ?, ?, ?, ?);");
+        try (Cursor c = db.rawQuery("select id, name, username, commits from metadata " +
+                "where id > 0 order by commits desc;", null)) {
+            int position = 0;
+            int rank = 0;
+            int lastCommits = -1;
+            while (c.moveToNext()) {
+                final int commits = c.getInt(3);
+                position++;
+                if (commits != lastCommits) {
+                    rank = position;
+                    lastCommits = commits;
+                }
+                insert.clearBindings();
+                insert.bindLong(1, c.getInt(0));
+                bindStringOrNull(insert, 2, c.getString(1));
+                bindStringOrNull(insert, 3, c.getString(2));
+                insert.bindLong(4, commits);
+                insert.bindLong(5, rank);
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    /**
+     * Reads the summary tables, or returns {@link #EMPTY} if they can't be read.
+     */
+    static ContributorsCloudStats read(SQLiteDatabase db) {
+        try (Cursor summary = db.rawQuery("select contributors, commits, last_update " +
+                     "from " + SUMMARY_TABLE + ";", null);
+             Cursor c = db.rawQuery("select id, name, username, commits, rank " +
+                     "from " + CONTRIBUTORS_TABLE + " order by id;", null)) {
+            if (!summary.moveToFirst()) {
+                return EMPTY;
+            }
+            ContributorsCloudStats stats = new ContributorsCloudStats(summary.getInt(0),
+                    summary.getInt(1), summary.getLong(2), c.getCount());
+            int i = 0;
+            while (i < stats.mCount && c.moveToNext()) {
+                stats.mIds[i] = c.getInt(0);
+                stats.mNames[i] = c.getString(1);
+                stats.mNicks[i] = c.getString(2);
+                stats.mCommits[i] = c.getInt(3);
+                stats.mRanks[i] = c.getInt(4);
+                i++;
+            }
+            return stats;
+        } catch (SQLException ex) {
+            Log.e(TAG, "Failed to read contributors stats", ex);
+            return EMPTY;
+        }
+    }
+
+    int getTotalContributors() {
+        return mTotalContributors;
+    }
+
+    int getTotalCommits() {
+        return mTotalCommits;
+    }
+
+    long getLastUpdate() {
+        return mLastUpdate;
+    }
+
+    /**
+     * Returns the index of the passed contributor, or -1 if there is none.
+     */
+    int find(int contributorId) {
+        int i = Arrays.binarySearch(mIds, 0, mCount, contributorId);
+        return i >= 0 ? i : -1;
+    }
+
+    String getName(int contributor) {
+        return mNames[contributor];
+    }
+
+    String getNick(int contributor) {
+        return mNicks[contributor];
+    }
+
+    int getCommits(int contributor) {
+        return mCommits[contributor];
+    }
+
+    int getRank(int contributor) {
+        return mRanks[contributor];
+    }
+}
@@ -24,7 +24,9 @@ import android.graphics.Matrix;
 import android.graphics.Matrix.ScaleToFit;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
+import android.os.Debug;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
@@ -40,6 +42,7 @@ import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
 import android.widget.OverScroller;
 
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 
 import static android.view.MotionEvent.ACTION_CANCEL;
@@ -59,6 +62,10 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
     // let debug flag be dynamic, but still Proguard can be used to remove from
     // release builds
     private static final boolean DEBUG = Log.isLoggable(LOG_TAG, Log.DEBUG);
+    // Counts the allocations made while handling move events. Separate from DEBUG,
+    // whose logging allocates itself
+    private static final boolean COUNT_ALLOCATIONS =
+            Log.isLoggable("ContributorsCloudAllocs", Log.DEBUG);
 
     static final Interpolator sInterpolator = new AccelerateDecelerateInterpolator();
     int ZOOM_DURATION = DEFAULT_ZOOM_DURATION;
@@ -205,15 +212,30 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
     private final Matrix mDrawMatrix = new Matrix();
     private final Matrix mSuppMatrix = new Matrix();
     private final RectF mDisplayRect = new RectF();
+    private final RectF mTempSrc = new RectF();
+    private final RectF mTempDst = new RectF();
     private final float[] mMatrixValues = new float[9];
 
+    // Scale of mSuppMatrix, updated whenever it's scaled
+    private float mScale = 1f;
+
+    // Drags are accumulated and applied once per frame
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private final Choreographer.FrameCallback mDragFrameCallback = this::doDragFrame;
+    private boolean mDragFramePending;
+    private float mPendingDx, mPendingDy;
+
+    private final FrameTimeHistogram mFrameTimes = new FrameTimeHistogram();
+
     // Listeners
+    private OnMatrixChangedListener mMatrixChangeListener;
     private OnPhotoTapListener mPhotoTapListener;
     private OnViewTapListener mViewTapListener;
 
     private int mIvTop, mIvRight, mIvBottom, mIvLeft;
     private FlingRunnable mCurrentFlingRunnable;
-    private int mScrollEdge = EDGE_BOTH;
+    // Horizontal bounds of the image as of the last bounds check
+    private float mBoundsLeft, mBoundsRight;
 
     private boolean mZoomEnabled;
 
@@ -221,6 +243,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         this(imageView, true);
     }
 
+    @SuppressWarnings("deprecation")
     public ContributorsCloudViewController(ImageView imageView, boolean zoomable) {
         final ViewConfiguration configuration = ViewConfiguration.get(imageView.getContext());
         mMinimumVelocity = configuration.getScaledMinimumFlingVelocity();
@@ -228,6 +251,10 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
 
         mImageView = new WeakReference<>(imageView);
 
+        if (COUNT_ALLOCATIONS) {
+            Debug.startAllocCounting();
+        }
+
         imageView.setOnTouchListener(this);
 
         ViewTreeObserver observer = imageView.getViewTreeObserver();
@@ -301,6 +328,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
 
             // make sure a pending fling runnable won't be run
             cancelFling();
+            cancelDrag();
         }
 
         if (null != mGestureDetector) {
@@ -308,6 +336,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         }
 
         // Clear listeners too
+        mMatrixChangeListener = null;
         mPhotoTapListener = null;
         mViewTapListener = null;
 
@@ -350,8 +379,14 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
     }
 
     public float getScale() {
-        return (float) Math.sqrt((float) Math.pow(getValue(mSuppMatrix, Matrix.MSCALE_X), 2)
-                + (float) Math.pow(getValue(mSuppMatrix, Matrix.MSKEW_Y), 2));
+        return mScale;
+    }
+
+    /**
+     * @return the distribution of the time spent on each drag, fling or zoom frame
+     */
+    public FrameTimeHistogram getFrameTimeHistogram() {
+        return mFrameTimes;
     }
 
     public void onDrag(float dx, float dy) {
@@ -364,8 +399,12 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         }
 
         ImageView imageView = getImageView();
-        mSuppMatrix.postTranslate(dx, dy);
-        checkAndDisplayMatrix();
+        mPendingDx += dx;
+        mPendingDy += dy;
+        if (!mDragFramePending) {
+            mDragFramePending = true;
+            mChoreographer.postFrameCallback(mDragFrameCallback);
+        }
 
         /*
          * Here we decide whether to let the ImageView's parent to start taking
@@ -374,13 +413,15 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
          * First we check whether this function is enabled. We never want the
          * parent to take over if we're scaling. We then check the edge we're
          * on, and the direction of the scroll (i.e. if we're pulling against
-         * the edge, aka 'overscrolling', let the parent take over).
+         * the edge, aka 'overscrolling', let the parent take over). The edge is
+         * the one the image will be on once the pending drag is applied.
          */
         ViewParent parent = imageView.getParent();
         if (!mScaleDragDetector.isInProgress() && !mBlockParentIntercept) {
-            if (mScrollEdge == EDGE_BOTH
-                    || (mScrollEdge == EDGE_LEFT && dx >= 1f)
-                    || (mScrollEdge == EDGE_RIGHT && dx <= -1f)) {
+            final int scrollEdge = getPendingScrollEdge(getImageViewWidth(imageView));
+            if (scrollEdge == EDGE_BOTH
+                    || (scrollEdge == EDGE_LEFT && dx >= 1f)
+                    || (scrollEdge == EDGE_RIGHT && dx <= -1f)) {
                 if (null != parent)
                     parent.requestDisallowInterceptTouchEvent(false);
             }
@@ -398,10 +439,18 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
                     + velocityX + " Vy: " + velocityY);
         }
         ImageView imageView = getImageView();
-        mCurrentFlingRunnable = new FlingRunnable(imageView.getContext());
+        if (null == mCurrentFlingRunnable) {
+            mCurrentFlingRunnable = new FlingRunnable(imageView.getContext());
+        }
+        // Apply any pending drag before the fling starts from the current position
+        if (mDragFramePending) {
+            cancelDrag();
+            applyPendingDrag();
+        }
         mCurrentFlingRunnable.fling(getImageViewWidth(imageView),
                 getImageViewHeight(imageView), (int) velocityX, (int) velocityY);
-        imageView.post(mCurrentFlingRunnable);
+        mChoreographer.removeFrameCallback(mCurrentFlingRunnable);
+        mChoreographer.postFrameCallback(mCurrentFlingRunnable);
         mIgnoreDoubleTapScale = false;
     }
 
@@ -448,13 +497,18 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
 
         if (getScale() < mMaxScale || scaleFactor < 1f) {
             mSuppMatrix.postScale(scaleFactor, scaleFactor, focusX, focusY);
+            updateScale();
             checkAndDisplayMatrix();
         }
     }
 
     @SuppressLint("ClickableViewAccessibility")
+    @SuppressWarnings("deprecation")
     @Override
     public boolean onTouch(View v, MotionEvent ev) {
+        final boolean countAllocations = COUNT_ALLOCATIONS
+                && ev.getActionMasked() == MotionEvent.ACTION_MOVE;
+        final int allocations = countAllocations ? Debug.getThreadAllocCount() : 0;
         boolean handled = false;
 
         if (mZoomEnabled && hasDrawable((ImageView) v)) {
@@ -481,8 +535,8 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
                     if (getScale() < mMinScale) {
                         RectF rect = getDisplayRect();
                         if (null != rect) {
-                            v.post(new AnimatedZoomRunnable(getScale(), mMinScale,
-                                    rect.centerX(), rect.centerY()));
+                            mChoreographer.postFrameCallback(new AnimatedZoomRunnable(
+                                    getScale(), mMinScale, rect.centerX(), rect.centerY()));
                             handled = true;
                         }
                     }
@@ -509,6 +563,9 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
 
         }
 
+        if (countAllocations) {
+            mFrameTimes.recordMoveAllocations(Debug.getThreadAllocCount() - allocations);
+        }
         return handled;
     }
 
@@ -522,6 +579,14 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         mMaxScale = maximumScale;
     }
 
+    public void setOnMatrixChangeListener(OnMatrixChangedListener listener) {
+        mMatrixChangeListener = listener;
+    }
+
+    public void setOnPhotoTapListener(OnPhotoTapListener listener) {
+        mPhotoTapListener = listener;
+    }
+
     public OnPhotoTapListener getOnPhotoTapListener() {
         return mPhotoTapListener;
     }
@@ -556,10 +621,11 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
             }
 
             if (animate) {
-                imageView.post(new AnimatedZoomRunnable(getScale(), scale,
+                mChoreographer.postFrameCallback(new AnimatedZoomRunnable(getScale(), scale,
                         focalX, focalY));
             } else {
                 mSuppMatrix.setScale(scale, scale, focalX, focalY);
+                updateScale();
                 checkAndDisplayMatrix();
             }
 
@@ -602,16 +668,52 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
     private void cancelFling() {
         if (null != mCurrentFlingRunnable) {
             mCurrentFlingRunnable.cancelFling();
-            mCurrentFlingRunnable = null;
         }
     }
 
+    private void cancelDrag() {
+        if (mDragFramePending) {
+            mChoreographer.removeFrameCallback(mDragFrameCallback);
+            mDragFramePending = false;
+        }
+    }
+
+    private void doDragFrame(long frameTimeNanos) {
+        final long startNanos = System.nanoTime();
+        mDragFramePending = false;
+        applyPendingDrag();
+        recordFrame(startNanos);
+    }
+
+    private void applyPendingDrag() {
+        mSuppMatrix.postTranslate(mPendingDx, mPendingDy);
+        mPendingDx = 0;
+        mPendingDy = 0;
+        checkAndDisplayMatrix();
+    }
+
+    /**
+     * Records the time spent on a frame which started at {@code startNanos}. Only frames
+     * which moved the image are measured, so idle time between gestures isn't counted.
+     */
+    private void recordFrame(long startNanos) {
+        mFrameTimes.record(System.nanoTime() - startNanos);
+    }
+
+    private void updateScale() {
+        mSuppMatrix.getValues(mMatrixValues);
+        final float scaleX = mMatrixValues[Matrix.MSCALE_X];
+        final float skewY = mMatrixValues[Matrix.MSKEW_Y];
+        mScale = (float) Math.sqrt(scaleX * scaleX + skewY * skewY);
+    }
+
     /**
      * Helper method that simply checks the Matrix, and then displays the result
      */
     private void checkAndDisplayMatrix() {
+        // checkMatrixBounds() leaves the corrected draw matrix in mDrawMatrix
         if (checkMatrixBounds()) {
-            setImageViewMatrix(getDrawMatrix());
+            setImageViewMatrix(mDrawMatrix);
         }
     }
 
@@ -656,22 +758,35 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         final int viewWidth = getImageViewWidth(imageView);
         if (width <= viewWidth) {
             deltaX = (viewWidth - width) / 2 - rect.left;
-            mScrollEdge = EDGE_BOTH;
         } else if (rect.left > 0) {
-            mScrollEdge = EDGE_LEFT;
             deltaX = -rect.left;
         } else if (rect.right < viewWidth) {
             deltaX = viewWidth - rect.right;
-            mScrollEdge = EDGE_RIGHT;
-        } else {
-            mScrollEdge = EDGE_NONE;
         }
+        mBoundsLeft = rect.left + deltaX;
+        mBoundsRight = rect.right + deltaX;
 
-        // Finally actually translate the matrix
+        // Finally actually translate the matrix, and keep the draw matrix in sync
         mSuppMatrix.postTranslate(deltaX, deltaY);
+        mDrawMatrix.postTranslate(deltaX, deltaY);
         return true;
     }
 
+    /**
+     * Returns the edge the image will be on once the pending drag is applied, the same
+     * way {@link #checkMatrixBounds()} will find it.
+     */
+    private int getPendingScrollEdge(int viewWidth) {
+        if (mBoundsRight - mBoundsLeft <= viewWidth) {
+            return EDGE_BOTH;
+        } else if (mBoundsLeft + mPendingDx > 0) {
+            return EDGE_LEFT;
+        } else if (mBoundsRight + mPendingDx < viewWidth) {
+            return EDGE_RIGHT;
+        }
+        return EDGE_NONE;
+    }
+
     /**
      * Helper method that maps the supplied Matrix to the current Drawable
      *
@@ -699,23 +814,12 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         this.ZOOM_DURATION = milliseconds;
     }
 
-    /**
-     * Helper method that 'unpacks' a Matrix and returns the required value
-     *
-     * @param matrix     - Matrix to unpack
-     * @param whichValue - Which value from Matrix.M* to return
-     * @return float - returned value
-     */
-    private float getValue(Matrix matrix, int whichValue) {
-        matrix.getValues(mMatrixValues);
-        return mMatrixValues[whichValue];
-    }
-
     /**
      * Resets the Matrix back to FIT_CENTER, and then displays it.s
      */
     private void resetMatrix() {
         mSuppMatrix.reset();
+        mScale = 1f;
         setImageViewMatrix(getDrawMatrix());
         checkMatrixBounds();
     }
@@ -726,6 +830,14 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
 
             checkImageViewScaleType();
             imageView.setImageMatrix(matrix);
+
+            // Call MatrixChangedListener if needed
+            if (null != mMatrixChangeListener) {
+                RectF displayRect = getDisplayRect(matrix);
+                if (null != displayRect) {
+                    mMatrixChangeListener.onMatrixChanged(displayRect);
+                }
+            }
         }
     }
 
@@ -747,8 +859,8 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
 
         mBaseMatrix.reset();
 
-        RectF mTempSrc = new RectF(0, 0, drawableWidth, drawableHeight);
-        RectF mTempDst = new RectF(0, 0, viewWidth, viewHeight);
+        mTempSrc.set(0, 0, drawableWidth, drawableHeight);
+        mTempDst.set(0, 0, viewWidth, viewHeight);
 
         mBaseMatrix.setRectToRect(mTempSrc, mTempDst, ScaleToFit.CENTER);
 
@@ -839,7 +951,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
                 if (!mIsDragging) {
                     // Use Pythagoras to see if drag length is larger than
                     // touch slop
-                    mIsDragging = Math.sqrt((dx * dx) + (dy * dy)) >= mTouchSlop;
+                    mIsDragging = (dx * dx) + (dy * dy) >= mTouchSlop * mTouchSlop;
                 }
 
                 if (mIsDragging) {
@@ -952,49 +1064,55 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         void onViewTap(View view, float x, float y);
     }
 
-    private class AnimatedZoomRunnable implements Runnable {
+    private class AnimatedZoomRunnable implements Choreographer.FrameCallback {
 
         private final float mFocalX, mFocalY;
-        private final long mStartTime;
+        private long mStartTime = -1;
         private final float mZoomStart, mZoomEnd;
 
         public AnimatedZoomRunnable(final float currentZoom, final float targetZoom,
                                     final float focalX, final float focalY) {
             mFocalX = focalX;
             mFocalY = focalY;
-            mStartTime = System.currentTimeMillis();
             mZoomStart = currentZoom;
             mZoomEnd = targetZoom;
         }
 
         @Override
-        public void run() {
+        public void doFrame(long frameTimeNanos) {
             ImageView imageView = getImageView();
             if (imageView == null) {
                 return;
             }
 
-            float t = interpolate();
+            final long startNanos = System.nanoTime();
+            final long frameTime = frameTimeNanos / 1000000;
+            if (mStartTime < 0) {
+                mStartTime = frameTime;
+            }
+
+            float t = interpolate(frameTime);
             float scale = mZoomStart + t * (mZoomEnd - mZoomStart);
             float deltaScale = scale / getScale();
 
             onScale(deltaScale, mFocalX, mFocalY);
+            recordFrame(startNanos);
 
             // We haven't hit our target scale yet, so post ourselves again
             if (t < 1f) {
-                imageView.postOnAnimation(this);
+                mChoreographer.postFrameCallback(this);
             }
         }
 
-        private float interpolate() {
-            float t = 1f * (System.currentTimeMillis() - mStartTime) / ZOOM_DURATION;
+        private float interpolate(long frameTime) {
+            float t = 1f * (frameTime - mStartTime) / ZOOM_DURATION;
             t = Math.min(1f, t);
             t = sInterpolator.getInterpolation(t);
             return t;
         }
     }
 
-    private class FlingRunnable implements Runnable {
+    private class FlingRunnable implements Choreographer.FrameCallback {
 
         protected final OverScroller mScroller;
         private int mCurrentX, mCurrentY;
@@ -1008,6 +1126,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
                 Log.d(LOG_TAG, "Cancel Fling");
             }
             mScroller.forceFinished(true);
+            mChoreographer.removeFrameCallback(this);
         }
 
         public void fling(int viewWidth, int viewHeight, int velocityX,
@@ -1051,11 +1170,12 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         }
 
         @Override
-        public void run() {
+        public void doFrame(long frameTimeNanos) {
             if (mScroller.isFinished()) {
                 return; // remaining post that should not be handled
             }
 
+            final long startNanos = System.nanoTime();
             ImageView imageView = getImageView();
             if (null != imageView && mScroller.computeScrollOffset()) {
 
@@ -1072,9 +1192,75 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
 
                 mCurrentX = newX;
                 mCurrentY = newY;
+                recordFrame(startNanos);
 
-                // Post On animation
-                imageView.postOnAnimation(this);
+                // Run again on the next frame
+                mChoreographer.postFrameCallback(this);
+            }
+        }
+    }
+
+    /**
+     * A histogram of frame times.
+     */
+    public static class FrameTimeHistogram {
+
+        // Upper bounds of the buckets, in milliseconds
+        private static final int[] BUCKETS = {1, 2, 4, 8, 12, 17, 34, 50};
+
+        private final long[] mCounts = new long[BUCKETS.length + 1];
+        private long mFrames;
+        private long mTotalNanos;
+        private long mMaxNanos;
+        // Only counted when allocation counting is enabled
+        private long mMoveEvents;
+        private long mMoveAllocations;
+
+        void record(long nanos) {
+            final long millis = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis >= BUCKETS[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mFrames++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+
+        void recordMoveAllocations(int allocations) {
+            mMoveEvents++;
+            mMoveAllocations += allocations;
+        }
+
+        public void reset() {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = 0;
+            }
+            mFrames = 0;
+            mTotalNanos = 0;
+            mMaxNanos = 0;
+            mMoveEvents = 0;
+            mMoveAllocations = 0;
+        }
+
+        public void dump(String prefix, PrintWriter pw) {
+            pw.print(prefix);
+            pw.print("frames=" + mFrames);
+            if (mFrames > 0) {
+                pw.print(" avg=" + (mTotalNanos / mFrames / 1000) + "us");
+                pw.print(" max=" + (mMaxNanos / 1000) + "us");
+            }
+            pw.println();
+            for (int i = 0; i < mCounts.length; i++) {
+                pw.print(prefix);
+                pw.print(i < BUCKETS.length ? "<" + BUCKETS[i] + "ms" : ">=" +
+                        BUCKETS[BUCKETS.length - 1] + "ms");
+                pw.println(": " + mCounts[i]);
+            }
+            if (mMoveEvents > 0) {
+                pw.print(prefix);
+                pw.println("move events=" + mMoveEvents + " allocations=" + mMoveAllocations);
             }
         }
     }
@@ -25,6 +25,7 @@ import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
@@ -33,10 +34,13 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.Manifest;
+import android.app.role.OnRoleHoldersChangedListener;
+import android.app.role.RoleManager;
 import android.media.AudioManager;
 import android.media.session.MediaSessionLegacyHelper;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
@@ -59,32 +63,51 @@ import java.util.List;
 public class KeyHandler implements DeviceKeyHandler {
 
     private static final String TAG = KeyHandler.class.getSimpleName();
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
 
     private static final String GESTURE_WAKEUP_REASON = "lineageparts-gesture-wakeup";
     private static final String PULSE_ACTION = "com.android.systemui.doze.pulse";
     private static final int GESTURE_REQUEST = 0;
     private static final int GESTURE_WAKELOCK_DURATION = 3000;
     private static final int EVENT_PROCESS_WAKELOCK_DURATION = 500;
+    // Delay before resolving the launch targets again, to coalesce bursts of changes
+    private static final int LAUNCH_TARGETS_RESOLVE_DELAY = 1000;
 
     private final Context mContext;
     private final AudioManager mAudioManager;
     private final PowerManager mPowerManager;
     private final WakeLock mGestureWakeLock;
     private final EventHandler mEventHandler;
+    private final Handler mBackgroundHandler;
     private final CameraManager mCameraManager;
     private final Vibrator mVibrator;
+    private final SettingsObserver mSettingsObserver;
+    private final LatencyHistogram mDispatchLatency = new LatencyHistogram();
 
     private final SparseIntArray mActionMapping = new SparseIntArray();
     private final boolean mProximityWakeSupported;
     private SensorManager mSensorManager;
     private Sensor mProximitySensor;
     private WakeLock mProximityWakeLock;
+    private ProximityGate mProximityGate;
     private boolean mDefaultProximity;
     private int mProximityTimeOut;
 
-    private String mRearCameraId;
+    private volatile String mRearCameraId;
     private boolean mTorchEnabled;
 
+    // Applications launched by the gestures, or null if they must be resolved again
+    private volatile LaunchTargets mLaunchTargets;
+    private final Runnable mResolveLaunchTargets = () -> {
+        mLaunchTargets = resolveLaunchTargets();
+        getRearCameraId();
+    };
+
+    private final Runnable mRegisterSettings;
+
+    // Time of the key event of the pending gesture request
+    private volatile long mGestureEventTime;
+
     private final BroadcastReceiver mUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -101,6 +124,27 @@ public class KeyHandler implements DeviceKeyHandler {
         }
     };
 
+    // The key handler is created before the system is ready, so the services it depends on
+    // are only used once it booted
+    private final BroadcastReceiver mBootReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mContext.unregisterReceiver(this);
+            mBackgroundHandler.post(mRegisterSettings);
+            registerLaunchTargetListeners();
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidateLaunchTargets();
+        }
+    };
+
+    private final OnRoleHoldersChangedListener mRoleHoldersListener =
+            (roleName, user) -> invalidateLaunchTargets();
+
     public KeyHandler(final Context context) {
         mContext = context;
 
@@ -112,6 +156,10 @@ public class KeyHandler implements DeviceKeyHandler {
 
         mEventHandler = new EventHandler(Looper.getMainLooper());
 
+        HandlerThread thread = new HandlerThread(TAG + ".Background");
+        thread.start();
+        mBackgroundHandler = new Handler(thread.getLooper());
+
         mCameraManager = mContext.getSystemService(CameraManager.class);
         mCameraManager.registerTorchCallback(new TorchModeCallback(), mEventHandler);
 
@@ -132,9 +180,111 @@ public class KeyHandler implements DeviceKeyHandler {
             mProximitySensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
             mProximityWakeLock = mPowerManager.newWakeLock(
                     PowerManager.PARTIAL_WAKE_LOCK, "LineagePartsProximityWakeLock");
+            mProximityWakeLock.setReferenceCounted(false);
+            if (mProximitySensor != null) {
+                mProximityGate = new ProximityGate();
+            }
         }
         mContext.registerReceiver(mUpdateReceiver,
                 new IntentFilter(TouchscreenGestureConstants.UPDATE_PREFS_ACTION));
+
+        mSettingsObserver = new SettingsObserver(mBackgroundHandler);
+        mRegisterSettings = mSettingsObserver::register;
+        mContext.registerReceiver(mBootReceiver, new IntentFilter(Intent.ACTION_BOOT_COMPLETED));
+    }
+
+    /**
+     * Resolves what the gestures launch ahead of time, and again only when the installed
+     * applications or the default ones change. Until then, they're resolved on demand.
+     */
+    private void registerLaunchTargetListeners() {
+        final RoleManager roleManager = mContext.getSystemService(RoleManager.class);
+        if (roleManager == null) {
+            // Cached targets would miss the default application changes
+            Log.w(TAG, "No role manager, resolving the gesture launch targets on demand");
+            return;
+        }
+        roleManager.addOnRoleHoldersChangedListenerAsUser(mBackgroundHandler::post,
+                mRoleHoldersListener, UserHandle.ALL);
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, packageFilter, null, mBackgroundHandler);
+        mContext.registerReceiver(mPackageReceiver,
+                new IntentFilter(Intent.ACTION_PREFERRED_ACTIVITY_CHANGED), null,
+                mBackgroundHandler);
+        mBackgroundHandler.post(mResolveLaunchTargets);
+    }
+
+    /**
+     * The applications launched by the gestures which need resolving.
+     */
+    private static class LaunchTargets {
+        final Intent browser;
+        final Intent email;
+        final Intent messages;
+
+        LaunchTargets(Intent browser, Intent email, Intent messages) {
+            this.browser = browser;
+            this.email = email;
+            this.messages = messages;
+        }
+    }
+
+    /**
+     * Snapshot of the settings read when handling gestures, kept up to date by observing
+     * them, so handling a key event doesn't need to query the settings providers. It's
+     * filled on the background thread when the system booted, or after the first key
+     * event if that comes first. Until then, the settings hold their default values.
+     */
+    private class SettingsObserver extends ContentObserver {
+        private volatile boolean mRegistered;
+        private volatile boolean mSetupCompleted;
+        private volatile boolean mProximityOnWake = mDefaultProximity;
+        private volatile boolean mHapticFeedback = true;
+        private volatile boolean mDozeEnabled = true;
+
+        SettingsObserver(Handler handler) {
+            super(handler);
+        }
+
+        synchronized void register() {
+            if (mRegistered) {
+                return;
+            }
+            mContext.getContentResolver().registerContentObserver(
+                    Settings.Secure.getUriFor(Settings.Secure.USER_SETUP_COMPLETE), false, this);
+            mContext.getContentResolver().registerContentObserver(
+                    Settings.Secure.getUriFor(Settings.Secure.DOZE_ENABLED), false, this);
+            mContext.getContentResolver().registerContentObserver(
+                    LineageSettings.System.getUriFor(LineageSettings.System.PROXIMITY_ON_WAKE),
+                    false, this);
+            mContext.getContentResolver().registerContentObserver(
+                    LineageSettings.System.getUriFor(
+                            LineageSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK),
+                    false, this);
+            update();
+            mRegistered = true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            update();
+        }
+
+        private void update() {
+            mSetupCompleted = Settings.Secure.getInt(mContext.getContentResolver(),
+                    Settings.Secure.USER_SETUP_COMPLETE, 0) != 0;
+            mDozeEnabled = Settings.Secure.getInt(mContext.getContentResolver(),
+                    Settings.Secure.DOZE_ENABLED, 1) != 0;
+            mProximityOnWake = LineageSettings.System.getInt(mContext.getContentResolver(),
+                    LineageSettings.System.PROXIMITY_ON_WAKE, mDefaultProximity ? 1 : 0) == 1;
+            mHapticFeedback = LineageSettings.System.getInt(mContext.getContentResolver(),
+                    LineageSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
+        }
     }
 
     private class TorchModeCallback extends CameraManager.TorchCallback {
@@ -153,57 +303,110 @@ public class KeyHandler implements DeviceKeyHandler {
 
     public KeyEvent handleKeyEvent(final KeyEvent event) {
         final int action = mActionMapping.get(event.getScanCode(), -1);
-        if (action < 0 || event.getAction() != KeyEvent.ACTION_UP || !hasSetupCompleted()) {
+        if (action >= 0 && !mSettingsObserver.mRegistered
+                && !mBackgroundHandler.hasCallbacks(mRegisterSettings)) {
+            mBackgroundHandler.post(mRegisterSettings);
+        }
+        if (action < 0 || event.getAction() != KeyEvent.ACTION_UP
+                || !mSettingsObserver.mSetupCompleted) {
             return event;
         }
 
-        if (action != 0 && !mEventHandler.hasMessages(GESTURE_REQUEST)) {
-            final Message msg = getMessageForAction(action);
-            final boolean proxWakeEnabled = LineageSettings.System.getInt(
-                    mContext.getContentResolver(),
-                    LineageSettings.System.PROXIMITY_ON_WAKE, mDefaultProximity ? 1 : 0) == 1;
-            if (mProximityWakeSupported && proxWakeEnabled && mProximitySensor != null) {
+        if (action != 0 && !mEventHandler.hasMessages(GESTURE_REQUEST)
+                && (mProximityGate == null || !mProximityGate.isChecking())) {
+            mGestureEventTime = event.getEventTime();
+            if (mProximityGate != null && mSettingsObserver.mProximityOnWake) {
                 mGestureWakeLock.acquire(2L * mProximityTimeOut);
-                mEventHandler.sendMessageDelayed(msg, mProximityTimeOut);
-                processEvent(action);
+                mProximityGate.check(action);
             } else {
                 mGestureWakeLock.acquire(EVENT_PROCESS_WAKELOCK_DURATION);
-                mEventHandler.sendMessage(msg);
+                mEventHandler.sendMessage(getMessageForAction(action));
             }
         }
 
         return null;
     }
 
-    private boolean hasSetupCompleted() {
-        return Settings.Secure.getInt(mContext.getContentResolver(),
-                Settings.Secure.USER_SETUP_COMPLETE, 0) != 0;
-    }
+    /**
+     * Holds back a gesture until the proximity sensor reports the device isn't covered,
+     * drops it if it is, and lets it through if the sensor doesn't report in time. The
+     * same listener is registered for every check, and only while checking.
+     */
+    private class ProximityGate implements SensorEventListener, Runnable {
+        private final LatencyHistogram mDelays = new LatencyHistogram();
+        private int mPassed;
+        private int mBlocked;
+        private int mTimedOut;
+
+        private boolean mChecking;
+        private int mAction;
+        private long mStartTime;
+
+        synchronized boolean isChecking() {
+            return mChecking;
+        }
 
-    private void processEvent(final int action) {
-        mProximityWakeLock.acquire();
-        mSensorManager.registerListener(new SensorEventListener() {
-            @Override
-            public void onSensorChanged(SensorEvent event) {
-                mProximityWakeLock.release();
-                mSensorManager.unregisterListener(this);
-                if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
-                    // The sensor took too long; ignoring
-                    return;
-                }
-                mEventHandler.removeMessages(GESTURE_REQUEST);
-                if (event.values[0] >= mProximitySensor.getMaximumRange()) {
-                    Message msg = getMessageForAction(action);
-                    mEventHandler.sendMessage(msg);
-                }
+        synchronized void check(int action) {
+            mChecking = true;
+            mAction = action;
+            mStartTime = SystemClock.uptimeMillis();
+
+            // Released when the check ends, and never held past the timeout
+            mProximityWakeLock.acquire(2L * mProximityTimeOut);
+            // Don't let the sensor batch readings, a late one only delays the gesture
+            mSensorManager.registerListener(this, mProximitySensor,
+                    SensorManager.SENSOR_DELAY_FASTEST, 0, mEventHandler);
+            mEventHandler.postAtTime(this, mStartTime + mProximityTimeOut);
+        }
+
+        @Override
+        public synchronized void onSensorChanged(SensorEvent event) {
+            // Readings delivered together with or after the deciding one are ignored
+            if (!mChecking) {
+                return;
             }
+            if (event.values[0] >= mProximitySensor.getMaximumRange()) {
+                mPassed++;
+                finish(true);
+            } else {
+                mBlocked++;
+                finish(false);
+            }
+        }
 
-            @Override
-            public void onAccuracyChanged(Sensor sensor, int accuracy) {
-                // Ignore
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            // Ignore
+        }
+
+        // The sensor took too long, let the gesture through
+        @Override
+        public synchronized void run() {
+            if (mChecking) {
+                mTimedOut++;
+                finish(true);
+            }
+        }
+
+        private void finish(boolean dispatch) {
+            mChecking = false;
+            mSensorManager.unregisterListener(this);
+            mEventHandler.removeCallbacks(this);
+            mProximityWakeLock.release();
+
+            final long delay = SystemClock.uptimeMillis() - mStartTime;
+            mDelays.record(delay);
+            if (DEBUG) {
+                Log.d(TAG, "Proximity check " + (dispatch ? "passed" : "blocked")
+                        + " gesture action " + mAction + " after " + delay + "ms, passed="
+                        + mPassed + " blocked=" + mBlocked + " timed out=" + mTimedOut
+                        + ", delays: " + mDelays);
             }
 
-        }, mProximitySensor, SensorManager.SENSOR_DELAY_FASTEST);
+            if (dispatch) {
+                mEventHandler.sendMessage(getMessageForAction(mAction));
+            }
+        }
     }
 
     private Message getMessageForAction(final int action) {
@@ -220,6 +423,13 @@ public class KeyHandler implements DeviceKeyHandler {
 
         @Override
         public void handleMessage(final Message msg) {
+            final long latency = SystemClock.uptimeMillis() - mGestureEventTime;
+            mDispatchLatency.record(latency);
+            if (DEBUG) {
+                Log.d(TAG, "Dispatching gesture action " + msg.arg1 + " after " + latency
+                        + "ms, latencies: " + mDispatchLatency);
+            }
+
             switch (msg.arg1) {
                 case TouchscreenGestureConstants.ACTION_CAMERA:
                     launchCamera();
@@ -272,9 +482,7 @@ public class KeyHandler implements DeviceKeyHandler {
     private void launchBrowser() {
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final Intent intent = getLaunchableIntent(
-                new Intent(Intent.ACTION_VIEW, Uri.parse("http:")));
-        startActivitySafely(intent);
+        startActivitySafely(getLaunchTargets().browser);
         doHapticFeedback();
     }
 
@@ -289,18 +497,14 @@ public class KeyHandler implements DeviceKeyHandler {
     private void launchEmail() {
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final Intent intent = getLaunchableIntent(
-                new Intent(Intent.ACTION_VIEW, Uri.parse("mailto:")));
-        startActivitySafely(intent);
+        startActivitySafely(getLaunchTargets().email);
         doHapticFeedback();
     }
 
     private void launchMessages() {
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final Intent intent = getLaunchableIntent(
-                new Intent(Intent.ACTION_VIEW, Uri.parse("sms:")));
-        startActivitySafely(intent);
+        startActivitySafely(getLaunchTargets().messages);
         doHapticFeedback();
     }
 
@@ -346,9 +550,7 @@ public class KeyHandler implements DeviceKeyHandler {
     }
 
     private void launchDozePulse() {
-        final boolean dozeEnabled = Settings.Secure.getInt(mContext.getContentResolver(),
-                Settings.Secure.DOZE_ENABLED, 1) != 0;
-        if (dozeEnabled) {
+        if (mSettingsObserver.mDozeEnabled) {
             mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
             final Intent intent = new Intent(PULSE_ACTION);
             mContext.sendBroadcastAsUser(intent, UserHandle.CURRENT);
@@ -374,12 +576,14 @@ public class KeyHandler implements DeviceKeyHandler {
             Log.w(TAG, "No intent passed to startActivitySafely");
             return;
         }
-        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK
+        // The launch targets are shared, so never modify them
+        final Intent launchIntent = new Intent(intent);
+        launchIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK
                 | Intent.FLAG_ACTIVITY_SINGLE_TOP
                 | Intent.FLAG_ACTIVITY_CLEAR_TOP);
         try {
             final UserHandle user = new UserHandle(UserHandle.USER_CURRENT);
-            mContext.startActivityAsUser(intent, null, user);
+            mContext.startActivityAsUser(launchIntent, null, user);
         } catch (ActivityNotFoundException e) {
             // Ignore
         }
@@ -391,9 +595,7 @@ public class KeyHandler implements DeviceKeyHandler {
         }
 
         if (mAudioManager.getRingerMode() != AudioManager.RINGER_MODE_SILENT) {
-            final boolean enabled = LineageSettings.System.getInt(mContext.getContentResolver(),
-                    LineageSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
-            if (enabled) {
+            if (mSettingsObserver.mHapticFeedback) {
                 mVibrator.vibrate(VibrationEffect.createOneShot(50,
                         VibrationEffect.DEFAULT_AMPLITUDE));
             }
@@ -419,6 +621,28 @@ public class KeyHandler implements DeviceKeyHandler {
         return mRearCameraId;
     }
 
+    private LaunchTargets getLaunchTargets() {
+        LaunchTargets targets = mLaunchTargets;
+        if (targets == null) {
+            // Not resolved yet, or being resolved again
+            targets = resolveLaunchTargets();
+        }
+        return targets;
+    }
+
+    private void invalidateLaunchTargets() {
+        mLaunchTargets = null;
+        mBackgroundHandler.removeCallbacks(mResolveLaunchTargets);
+        mBackgroundHandler.postDelayed(mResolveLaunchTargets, LAUNCH_TARGETS_RESOLVE_DELAY);
+    }
+
+    private LaunchTargets resolveLaunchTargets() {
+        return new LaunchTargets(
+                getLaunchableIntent(new Intent(Intent.ACTION_VIEW, Uri.parse("http:"))),
+                getLaunchableIntent(new Intent(Intent.ACTION_VIEW, Uri.parse("mailto:"))),
+                getLaunchableIntent(new Intent(Intent.ACTION_VIEW, Uri.parse("sms:"))));
+    }
+
     private Intent getLaunchableIntent(Intent intent) {
         PackageManager pm = mContext.getPackageManager();
         List<ResolveInfo> resInfo = pm.queryIntentActivities(intent, 0);
@@ -427,4 +651,44 @@ public class KeyHandler implements DeviceKeyHandler {
         }
         return pm.getLaunchIntentForPackage(resInfo.get(0).activityInfo.packageName);
     }
+
+    /**
+     * Histogram of latencies, in milliseconds. Only used on the main thread.
+     */
+    private static class LatencyHistogram {
+        // Upper bounds of the buckets, in milliseconds
+        private static final int[] BUCKETS = {10, 25, 50, 100, 250, 500, 1000};
+
+        private final int[] mCounts = new int[BUCKETS.length + 1];
+        private int mCount;
+        private long mTotal;
+        private long mMax;
+
+        void record(long latency) {
+            int bucket = 0;
+            while (bucket < BUCKETS.length && latency >= BUCKETS[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mCount++;
+            mTotal += latency;
+            mMax = Math.max(mMax, latency);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("count=").append(mCount);
+            if (mCount > 0) {
+                builder.append(" avg=").append(mTotal / mCount).append("ms");
+                builder.append(" max=").append(mMax).append("ms");
+            }
+            for (int i = 0; i < mCounts.length; i++) {
+                builder.append(i < BUCKETS.length ? " <" + BUCKETS[i] : " >="
+                        + BUCKETS[BUCKETS.length - 1]);
+                builder.append("ms:").append(mCounts[i]);
+            }
+            return builder.toString();
+        }
+    }
 }
@@ -36,6 +36,7 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.preference.PreferenceManager;
 
 import org.lineageos.lineageparts.utils.DeviceUtils;
+import org.lineageos.lineageparts.utils.LineageSettingsWriter;
 import org.lineageos.lineageparts.widget.CustomDialogPreference;
 import org.lineageos.lineageparts.R;
 
@@ -176,13 +177,16 @@ public class ButtonBacklightBrightness extends CustomDialogPreference<AlertDialo
                     .apply();
         }
 
-        applyTimeout(mTimeoutBar.getProgress());
+        LineageSettingsWriter writer = LineageSettingsWriter.secure(mResolver)
+                .putInt(LineageSettings.Secure.BUTTON_BACKLIGHT_TIMEOUT,
+                        mTimeoutBar.getProgress() * 1000);
         if (mButtonBrightness != null) {
-            mButtonBrightness.applyBrightness();
+            mButtonBrightness.applyBrightness(writer);
         }
         if (mKeyboardBrightness != null) {
-            mKeyboardBrightness.applyBrightness();
+            mKeyboardBrightness.applyBrightness(writer);
         }
+        writer.commit();
 
         updateSummary();
     }
@@ -396,8 +400,8 @@ public class ButtonBacklightBrightness extends CustomDialogPreference<AlertDialo
             return LineageSettings.Secure.getFloat(mResolver, mSetting, mDefaultBrightness);
         }
 
-        public void applyBrightness() {
-            LineageSettings.Secure.putFloat(mResolver, mSetting, getBrightness(false));
+        public void applyBrightness(LineageSettingsWriter writer) {
+            writer.putFloat(mSetting, getBrightness(false));
         }
 
         /* Behaviors when it's a seekbar */
@@ -40,11 +40,12 @@ public class PreviewData extends SettingsPreferenceFragment {
 
         final PreferenceScreen prefSet = getPreferenceScreen();
         final Context context = getActivity();
+        final Utilities.Identity identity = Utilities.getIdentity(context);
 
-        prefSet.findPreference(UNIQUE_ID).setSummary(Utilities.getUniqueID(context));
+        prefSet.findPreference(UNIQUE_ID).setSummary(identity.uniqueId);
         prefSet.findPreference(DEVICE).setSummary(Utilities.getDevice());
         prefSet.findPreference(VERSION).setSummary(Utilities.getModVersion());
-        prefSet.findPreference(COUNTRY).setSummary(Utilities.getCountryCode(context));
-        prefSet.findPreference(CARRIER).setSummary(Utilities.getCarrier(context));
+        prefSet.findPreference(COUNTRY).setSummary(identity.countryCode);
+        prefSet.findPreference(CARRIER).setSummary(identity.carrier);
     }
 }
@@ -18,14 +18,13 @@
 package org.lineageos.lineageparts.lineagestats;
 
 import android.app.IntentService;
-import android.app.job.JobInfo;
 import android.app.job.JobScheduler;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.os.PersistableBundle;
 import android.util.Log;
 
+import org.json.JSONException;
+
 public class ReportingService extends IntentService {
     /* package */ static final String TAG = "LineageStats";
     private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
@@ -40,39 +39,29 @@ public class ReportingService extends IntentService {
 
         Context context = getApplicationContext();
 
-        String deviceId = Utilities.getUniqueID(context);
+        Utilities.Identity identity = Utilities.getIdentity(context);
+        String deviceId = identity.uniqueId;
         String deviceName = Utilities.getDevice();
         String deviceVersion = Utilities.getModVersion();
-        String deviceCountry = Utilities.getCountryCode(context);
-        String deviceCarrier = Utilities.getCarrier(context);
-        String deviceCarrierId = Utilities.getCarrierId(context);
+        String deviceCountry = identity.countryCode;
+        String deviceCarrier = identity.carrier;
+        String deviceCarrierId = identity.carrierId;
 
         final int lineageOldJobId = AnonymousStats.getLastJobId(context);
         final int lineageOrgJobId = AnonymousStats.getNextJobId(context);
 
         if (DEBUG) Log.d(TAG, "scheduling job id: " + lineageOrgJobId);
 
-        PersistableBundle lineageBundle = new PersistableBundle();
-        lineageBundle.putString(StatsUploadJobService.KEY_DEVICE_NAME, deviceName);
-        lineageBundle.putString(StatsUploadJobService.KEY_UNIQUE_ID, deviceId);
-        lineageBundle.putString(StatsUploadJobService.KEY_VERSION, deviceVersion);
-        lineageBundle.putString(StatsUploadJobService.KEY_COUNTRY, deviceCountry);
-        lineageBundle.putString(StatsUploadJobService.KEY_CARRIER, deviceCarrier);
-        lineageBundle.putString(StatsUploadJobService.KEY_CARRIER_ID, deviceCarrierId);
-        lineageBundle.putLong(StatsUploadJobService.KEY_TIMESTAMP, System.currentTimeMillis());
-
-        // set job types
-        lineageBundle.putInt(StatsUploadJobService.KEY_JOB_TYPE,
-                StatsUploadJobService.JOB_TYPE_LINEAGEORG);
+        // queue the check-in, replacing any pending one
+        try {
+            new StatsOutbox(context).enqueue(StatsUploadJobService.buildStatsRequest(deviceId,
+                    deviceName, deviceVersion, deviceCountry, deviceCarrier, deviceCarrierId));
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not queue stats checkin", e);
+        }
 
         // schedule lineage stats upload
-        js.schedule(new JobInfo.Builder(lineageOrgJobId, new ComponentName(getPackageName(),
-                StatsUploadJobService.class.getName()))
-                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
-                .setMinimumLatency(1000)
-                .setExtras(lineageBundle)
-                .setPersisted(true)
-                .build());
+        StatsUploadJobService.scheduleUpload(context, lineageOrgJobId, 1000);
 
         // cancel old job in case it didn't run yet
         js.cancel(lineageOldJobId);
@@ -24,6 +24,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.UserHandle;
+import android.telephony.CarrierConfigManager;
 import android.util.Log;
 
 public class ReportingServiceManager extends BroadcastReceiver {
@@ -43,6 +44,11 @@ public class ReportingServiceManager extends BroadcastReceiver {
             setAlarm(context);
         } else if (intent.getAction().equals(ACTION_LAUNCH_SERVICE)){
             launchService(context, intent.getBooleanExtra(EXTRA_FORCE, false));
+        } else if (intent.getAction().equals(Intent.ACTION_LOCALE_CHANGED)
+                || intent.getAction().equals(
+                        CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED)) {
+            // The country and carrier of the check-ins may have changed
+            Utilities.invalidateIdentity(context);
         }
     }
 
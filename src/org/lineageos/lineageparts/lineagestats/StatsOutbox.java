@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2022 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineageparts.lineagestats;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Persistent queue of the check-ins waiting to be uploaded. Check-ins are keyed by device
+ * hash, so a newer check-in of the same device replaces the pending one, and all the
+ * pending check-ins are uploaded by the same job. The outbox also keeps the number of
+ * failed upload attempts, which drives the retry backoff.
+ */
+class StatsOutbox {
+
+    private static final String TAG = StatsOutbox.class.getSimpleName();
+
+    private static final String FILE_NAME = "stats_outbox.json";
+
+    private static final String KEY_PENDING = "pending";
+    private static final String KEY_ATTEMPTS = "attempts";
+    private static final String KEY_GZIP = "gzip";
+    private static final String KEY_DEVICE_HASH = "device_hash";
+
+    private static final long MIN_RETRY_DELAY = 30L * 1000L;
+    private static final long MAX_RETRY_DELAY = 6L * 60L * 60L * 1000L;
+
+    // The service and the upload job each have their own outbox, on different threads
+    private static final Object sLock = new Object();
+
+    private final AtomicFile mFile;
+
+    StatsOutbox(Context context) {
+        this(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    StatsOutbox(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Adds a check-in, replacing the pending one of the same device.
+     */
+    void enqueue(JSONObject checkIn) throws JSONException {
+        synchronized (sLock) {
+            JSONObject state = read();
+            state.getJSONObject(KEY_PENDING).put(checkIn.getString(KEY_DEVICE_HASH), checkIn);
+            write(state);
+        }
+    }
+
+    List<JSONObject> getPending() {
+        synchronized (sLock) {
+            JSONObject pending = read().optJSONObject(KEY_PENDING);
+            List<JSONObject> result = new ArrayList<>();
+            if (pending != null) {
+                Iterator<String> keys = pending.keys();
+                while (keys.hasNext()) {
+                    JSONObject checkIn = pending.optJSONObject(keys.next());
+                    if (checkIn != null) {
+                        result.add(checkIn);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    boolean isEmpty() {
+        synchronized (sLock) {
+            JSONObject pending = read().optJSONObject(KEY_PENDING);
+            return pending == null || pending.length() == 0;
+        }
+    }
+
+    /**
+     * Removes an uploaded check-in, unless a newer one of the same device replaced it
+     * in the meantime.
+     */
+    void remove(JSONObject checkIn) {
+        synchronized (sLock) {
+            JSONObject state = read();
+            JSONObject pending = state.optJSONObject(KEY_PENDING);
+            String deviceHash = checkIn.optString(KEY_DEVICE_HASH);
+            JSONObject current = pending.optJSONObject(deviceHash);
+            if (current != null && current.toString().equals(checkIn.toString())) {
+                pending.remove(deviceHash);
+                write(state);
+            }
+        }
+    }
+
+    int getAttempts() {
+        synchronized (sLock) {
+            return read().optInt(KEY_ATTEMPTS);
+        }
+    }
+
+    void setAttempts(int attempts) {
+        synchronized (sLock) {
+            JSONObject state = read();
+            try {
+                state.put(KEY_ATTEMPTS, attempts);
+            } catch (JSONException e) {
+                // Can't happen with an int
+            }
+            write(state);
+        }
+    }
+
+    /**
+     * Whether payloads may be sent gzip-encoded, where the server is configured to accept
+     * them. Turned off for good once the server fails an encoded payload.
+     */
+    boolean isGzipEnabled() {
+        synchronized (sLock) {
+            return read().optBoolean(KEY_GZIP, true);
+        }
+    }
+
+    void setGzipEnabled(boolean enabled) {
+        synchronized (sLock) {
+            JSONObject state = read();
+            try {
+                state.put(KEY_GZIP, enabled);
+            } catch (JSONException e) {
+                // Can't happen with a boolean
+            }
+            write(state);
+        }
+    }
+
+    /**
+     * Returns the delay before the next upload attempt, after the passed number of
+     * failed attempts: exponential, capped, with half of it randomized so devices which
+     * failed together don't retry together.
+     */
+    static long getRetryDelay(int attempts, Random random) {
+        long delay = MIN_RETRY_DELAY << Math.min(Math.max(attempts - 1, 0), 20);
+        delay = Math.min(delay, MAX_RETRY_DELAY);
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    private JSONObject read() {
+        JSONObject state = null;
+        try {
+            state = new JSONObject(new String(mFile.readFully(), StandardCharsets.UTF_8));
+        } catch (FileNotFoundException e) {
+            // Nothing queued yet
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Discarding unreadable stats outbox", e);
+        }
+        if (state == null) {
+            state = new JSONObject();
+        }
+        if (state.optJSONObject(KEY_PENDING) == null) {
+            try {
+                state.put(KEY_PENDING, new JSONObject());
+            } catch (JSONException e) {
+                // Can't happen with an object
+            }
+        }
+        return state;
+    }
+
+    private void write(JSONObject state) {
+        FileOutputStream os = null;
+        try {
+            os = mFile.startWrite();
+            os.write(state.toString().getBytes(StandardCharsets.UTF_8));
+            mFile.finishWrite(os);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write stats outbox", e);
+            mFile.failWrite(os);
+        }
+    }
+}
@@ -17,28 +17,37 @@
 
 package org.lineageos.lineageparts.lineagestats;
 
+import android.app.job.JobInfo;
 import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
 import android.app.job.JobService;
-import android.net.Uri;
-import android.os.AsyncTask;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.SparseIntArray;
 import org.lineageos.lineageparts.R;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class StatsUploadJobService extends JobService {
 
@@ -48,6 +57,7 @@ public class StatsUploadJobService extends JobService {
     public static final String KEY_JOB_TYPE = "job_type";
     public static final int JOB_TYPE_LINEAGEORG = 1;
 
+    // Check-in extras of the jobs scheduled before check-ins were queued in the outbox
     public static final String KEY_UNIQUE_ID = "uniqueId";
     public static final String KEY_DEVICE_NAME = "deviceName";
     public static final String KEY_VERSION = "version";
@@ -56,8 +66,42 @@ public class StatsUploadJobService extends JobService {
     public static final String KEY_CARRIER_ID = "carrierId";
     public static final String KEY_TIMESTAMP = "timeStamp";
 
-    private final Map<JobParameters, StatsUploadTask> mCurrentJobs
-            = Collections.synchronizedMap(new ArrayMap<JobParameters, StatsUploadTask>());
+    private static final int MAX_RUNNING_JOBS = 2;
+    private static final int MAX_QUEUED_JOBS = 4;
+    private static final long JOB_TIMEOUT = 2L * 60L * 1000L;
+
+    // Shared by all the service instances, idle threads are let go
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_RUNNING_JOBS, MAX_RUNNING_JOBS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_JOBS), r -> new Thread(r, "StatsUpload"));
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final UploadMetrics sMetrics = new UploadMetrics();
+
+    private final Map<JobParameters, UploadJob> mCurrentJobs
+            = Collections.synchronizedMap(new ArrayMap<JobParameters, UploadJob>());
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+
+    /**
+     * Schedules a job uploading the check-ins queued in the outbox.
+     */
+    public static void scheduleUpload(Context context, int jobId, long delay) {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putInt(KEY_JOB_TYPE, JOB_TYPE_LINEAGEORG);
+
+        JobScheduler js = context.getSystemService(JobScheduler.class);
+        js.schedule(new JobInfo.Builder(jobId,
+                new ComponentName(context, StatsUploadJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(delay)
+                .setExtras(extras)
+                .setPersisted(true)
+                .build());
+    }
 
     @Override
     public boolean onStartJob(JobParameters jobParameters) {
@@ -68,9 +112,18 @@ public class StatsUploadJobService extends JobService {
             return false;
         }
 
-        final StatsUploadTask uploadTask = new StatsUploadTask(jobParameters);
-        mCurrentJobs.put(jobParameters, uploadTask);
-        uploadTask.execute((Void) null);
+        final UploadJob job = new UploadJob(jobParameters);
+        mCurrentJobs.put(jobParameters, job);
+        sMetrics.onJobStarted();
+        try {
+            job.start();
+        } catch (RejectedExecutionException e) {
+            // Too many jobs already, let the scheduler retry this one later
+            Log.w(TAG, "Rejected job id " + jobParameters.getJobId());
+            mCurrentJobs.remove(jobParameters);
+            sMetrics.onJobRejected();
+            mHandler.post(() -> jobFinished(jobParameters, true));
+        }
         return true;
     }
 
@@ -79,37 +132,67 @@ public class StatsUploadJobService extends JobService {
         if (DEBUG)
             Log.d(TAG, "onStopJob() called with " + "jobParameters = [" + jobParameters + "]");
 
-        final StatsUploadTask cancelledJob;
+        final UploadJob cancelledJob;
         cancelledJob = mCurrentJobs.remove(jobParameters);
 
         if (cancelledJob != null) {
             // cancel the ongoing background task
-            cancelledJob.cancel(true);
+            cancelledJob.cancel();
+            sMetrics.onJobStopped();
             return true; // reschedule
         }
 
         return false;
     }
 
-    private class StatsUploadTask extends AsyncTask<Void, Void, Boolean> {
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Running jobs: " + mCurrentJobs.size());
+        writer.println("Executor: active=" + sExecutor.getActiveCount()
+                + " queued=" + sExecutor.getQueue().size());
+        sMetrics.dump(writer);
+    }
+
+    private class UploadJob implements Runnable {
 
         private final JobParameters mJobParams;
+        private final Runnable mTimeout = this::onTimeout;
+        private Future<?> mFuture;
 
-        public StatsUploadTask(JobParameters jobParams) {
+        public UploadJob(JobParameters jobParams) {
             this.mJobParams = jobParams;
         }
 
+        void start() {
+            mFuture = sExecutor.submit(this);
+            mHandler.postDelayed(mTimeout, JOB_TIMEOUT);
+        }
+
+        void cancel() {
+            mHandler.removeCallbacks(mTimeout);
+            mFuture.cancel(true);
+        }
+
+        private boolean isCancelled() {
+            return Thread.currentThread().isInterrupted();
+        }
+
         @Override
-        protected Boolean doInBackground(Void... params) {
+        public void run() {
 
             PersistableBundle extras = mJobParams.getExtras();
-
-            String deviceId = extras.getString(KEY_UNIQUE_ID);
-            String deviceName = extras.getString(KEY_DEVICE_NAME);
-            String deviceVersion = extras.getString(KEY_VERSION);
-            String deviceCountry = extras.getString(KEY_COUNTRY);
-            String deviceCarrier = extras.getString(KEY_CARRIER);
-            String deviceCarrierId = extras.getString(KEY_CARRIER_ID);
+            StatsOutbox outbox = new StatsOutbox(StatsUploadJobService.this);
+
+            if (extras.containsKey(KEY_UNIQUE_ID)) {
+                try {
+                    outbox.enqueue(buildStatsRequest(extras.getString(KEY_UNIQUE_ID),
+                            extras.getString(KEY_DEVICE_NAME), extras.getString(KEY_VERSION),
+                            extras.getString(KEY_COUNTRY), extras.getString(KEY_CARRIER),
+                            extras.getString(KEY_CARRIER_ID)));
+                } catch (JSONException e) {
+                    Log.e(TAG, "Could not queue stats checkin", e);
+                }
+            }
 
             boolean success = false;
             int jobType = extras.getInt(KEY_JOB_TYPE, -1);
@@ -117,32 +200,66 @@ public class StatsUploadJobService extends JobService {
                 switch (jobType) {
                     case JOB_TYPE_LINEAGEORG:
                         try {
-                            JSONObject json = buildStatsRequest(deviceId, deviceName,
-                                    deviceVersion, deviceCountry, deviceCarrier, deviceCarrierId);
-                            success = uploadToLineage(json);
-                        } catch (IOException | JSONException e) {
+                            success = uploadToLineage(outbox);
+                        } catch (IOException e) {
                             Log.e(TAG, "Could not upload stats checkin to community server", e);
+                            sMetrics.onUploadFailed();
                             success = false;
                         }
                         break;
                 }
             }
+            if (isCancelled()) {
+                // onStopJob() or the timeout already took care of the job
+                return;
+            }
             if (DEBUG)
                 Log.d(TAG, "job id " + mJobParams.getJobId() + ", has finished with success="
                         + success);
-            return success;
+
+            // Retry what's left in the outbox later
+            final long retryDelay;
+            if (success || outbox.isEmpty()) {
+                outbox.setAttempts(0);
+                retryDelay = -1;
+            } else {
+                final int attempts = outbox.getAttempts() + 1;
+                outbox.setAttempts(attempts);
+                retryDelay = StatsOutbox.getRetryDelay(attempts, mRandom);
+            }
+            final boolean result = success;
+            mHandler.post(() -> onFinished(result, retryDelay));
         }
 
-        @Override
-        protected void onPostExecute(Boolean success) {
-            mCurrentJobs.remove(mJobParams);
-            jobFinished(mJobParams, !success);
+        private void onFinished(boolean success, long retryDelay) {
+            if (mCurrentJobs.remove(mJobParams) == null) {
+                // Stopped or timed out meanwhile
+                return;
+            }
+            mHandler.removeCallbacks(mTimeout);
+            sMetrics.onJobFinished(success);
+            jobFinished(mJobParams, false);
+            if (retryDelay >= 0) {
+                if (DEBUG) Log.d(TAG, "retrying job id " + mJobParams.getJobId() + " in "
+                        + retryDelay + "ms");
+                scheduleUpload(StatsUploadJobService.this, mJobParams.getJobId(), retryDelay);
+            }
+        }
+
+        private void onTimeout() {
+            if (mCurrentJobs.remove(mJobParams) == null) {
+                return;
+            }
+            Log.w(TAG, "job id " + mJobParams.getJobId() + " timed out");
+            mFuture.cancel(true);
+            sMetrics.onJobTimedOut();
+            jobFinished(mJobParams, true);
         }
     }
 
-    private JSONObject buildStatsRequest(String deviceId, String deviceName, String deviceVersion,
-                                         String deviceCountry, String deviceCarrier,
-                                         String deviceCarrierId) throws JSONException {
+    static JSONObject buildStatsRequest(String deviceId, String deviceName, String deviceVersion,
+                                        String deviceCountry, String deviceCarrier,
+                                        String deviceCarrierId) throws JSONException {
         JSONObject request = new JSONObject();
         request.put("device_hash", deviceId);
         request.put("device_name", deviceName);
@@ -153,48 +270,116 @@ public class StatsUploadJobService extends JobService {
         return request;
     }
 
-    private boolean uploadToLineage(JSONObject json) throws IOException {
-        final Uri uri = Uri.parse(getString(R.string.stats_lineage_url));
-        URL url = new URL(uri.toString());
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-        try {
-            urlConnection.setInstanceFollowRedirects(true);
-            urlConnection.setDoOutput(true);
-            urlConnection.setDoInput(true);
-            urlConnection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-
-            OutputStream os = urlConnection.getOutputStream();
-            os.write(json.toString().getBytes(StandardCharsets.UTF_8));
-            os.close();
-
-            final int responseCode = urlConnection.getResponseCode();
-            if (DEBUG) Log.d(TAG, "lineage server response code=" + responseCode);
-            final boolean success = responseCode == HttpURLConnection.HTTP_OK;
-            if (!success) {
-                Log.w(TAG, "failed sending, server returned: " + getResponse(urlConnection));
-            }
-            return success;
-        } finally {
-            urlConnection.disconnect();
+    private boolean uploadToLineage(StatsOutbox outbox) throws IOException {
+        final List<JSONObject> pending = outbox.getPending();
+        if (pending.isEmpty()) {
+            return true;
         }
 
+        // All the pending check-ins go through the same connection
+        StatsUploader uploader = new StatsUploader(new URL(getString(R.string.stats_lineage_url)));
+        boolean success = true;
+        for (JSONObject checkIn : pending) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            boolean gzip = getResources().getBoolean(R.bool.config_statsGzipUpload)
+                    && outbox.isGzipEnabled();
+            int responseCode = upload(uploader, checkIn, gzip);
+            if (gzip && (responseCode < HttpURLConnection.HTTP_OK
+                    || responseCode >= HttpURLConnection.HTTP_MULT_CHOICE)) {
+                // Whatever the failure, don't risk the server not understanding
+                // compressed payloads
+                outbox.setGzipEnabled(false);
+                responseCode = upload(uploader, checkIn, false);
+            }
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                outbox.remove(checkIn);
+            } else {
+                success = false;
+            }
+        }
+        return success;
     }
 
-    private String getResponse(HttpURLConnection httpUrlConnection)
+    private static int upload(StatsUploader uploader, JSONObject checkIn, boolean gzip)
             throws IOException {
-        InputStream responseStream = new BufferedInputStream(httpUrlConnection.getErrorStream());
+        final long start = SystemClock.elapsedRealtime();
+        final long bytesSent = uploader.getBytesSent();
+        final int responseCode = uploader.upload(checkIn, gzip);
+        sMetrics.onUploaded(responseCode, uploader.getBytesSent() - bytesSent,
+                SystemClock.elapsedRealtime() - start);
+        return responseCode;
+    }
+
+    /**
+     * Upload counters since the process started.
+     */
+    private static class UploadMetrics {
+        private int mJobsStarted;
+        private int mJobsSucceeded;
+        private int mJobsFailed;
+        private int mJobsStopped;
+        private int mJobsTimedOut;
+        private int mJobsRejected;
+        private int mUploads;
+        private int mUploadErrors;
+        private long mBytesSent;
+        private long mTotalLatency;
+        private long mMaxLatency;
+        // Responses, by HTTP code
+        private final SparseIntArray mResponses = new SparseIntArray();
+
+        synchronized void onJobStarted() {
+            mJobsStarted++;
+        }
 
-        BufferedReader responseStreamReader = new BufferedReader(
-                new InputStreamReader(responseStream));
-        String line = "";
-        StringBuilder stringBuilder = new StringBuilder();
-        while ((line = responseStreamReader.readLine()) != null) {
-            stringBuilder.append(line).append("\n");
+        synchronized void onJobFinished(boolean success) {
+            if (success) {
+                mJobsSucceeded++;
+            } else {
+                mJobsFailed++;
+            }
         }
-        responseStreamReader.close();
-        responseStream.close();
 
-        return stringBuilder.toString();
+        synchronized void onJobStopped() {
+            mJobsStopped++;
+        }
+
+        synchronized void onJobTimedOut() {
+            mJobsTimedOut++;
+        }
+
+        synchronized void onJobRejected() {
+            mJobsRejected++;
+        }
+
+        synchronized void onUploaded(int responseCode, long bytesSent, long latency) {
+            mUploads++;
+            mBytesSent += bytesSent;
+            mTotalLatency += latency;
+            mMaxLatency = Math.max(mMaxLatency, latency);
+            mResponses.put(responseCode, mResponses.get(responseCode) + 1);
+        }
+
+        synchronized void onUploadFailed() {
+            mUploadErrors++;
+        }
+
+        synchronized void dump(PrintWriter writer) {
+            writer.println("Jobs: started=" + mJobsStarted + " succeeded=" + mJobsSucceeded
+                    + " failed=" + mJobsFailed + " stopped=" + mJobsStopped
+                    + " timedOut=" + mJobsTimedOut + " rejected=" + mJobsRejected);
+            writer.println("Uploads: attempts=" + mUploads + " ioErrors=" + mUploadErrors
+                    + " bytesSent=" + mBytesSent);
+            if (mUploads > 0) {
+                writer.println("Latency: avg=" + (mTotalLatency / mUploads) + "ms max="
+                        + mMaxLatency + "ms");
+            }
+            for (int i = 0; i < mResponses.size(); i++) {
+                writer.println("  HTTP " + mResponses.keyAt(i) + ": " + mResponses.valueAt(i));
+            }
+        }
     }
 
 }
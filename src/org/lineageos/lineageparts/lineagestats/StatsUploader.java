@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2022 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineageparts.lineagestats;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Posts check-ins to a stats server. Responses are always read to the end and the
+ * connections are never explicitly disconnected, so consecutive uploads to the same
+ * server reuse the same keep-alive connection.
+ */
+class StatsUploader {
+
+    private static final String TAG = StatsUploader.class.getSimpleName();
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // Only this much of an error response is logged
+    private static final int MAX_LOGGED_RESPONSE = 1024;
+
+    private static final int CONNECT_TIMEOUT = 15 * 1000;
+    private static final int READ_TIMEOUT = 15 * 1000;
+
+    private final URL mUrl;
+    private long mBytesSent;
+
+    StatsUploader(URL url) {
+        mUrl = url;
+    }
+
+    /**
+     * Uploads a check-in.
+     *
+     * @return the HTTP response code
+     */
+    int upload(JSONObject checkIn, boolean gzip) throws IOException {
+        final byte[] body = encode(checkIn, gzip);
+        HttpURLConnection urlConnection = (HttpURLConnection) mUrl.openConnection();
+        try {
+            urlConnection.setConnectTimeout(CONNECT_TIMEOUT);
+            urlConnection.setReadTimeout(READ_TIMEOUT);
+            urlConnection.setInstanceFollowRedirects(true);
+            urlConnection.setDoOutput(true);
+            urlConnection.setDoInput(true);
+            urlConnection.setFixedLengthStreamingMode(body.length);
+            urlConnection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            if (gzip) {
+                urlConnection.setRequestProperty("Content-Encoding", "gzip");
+            }
+
+            try (OutputStream os = urlConnection.getOutputStream()) {
+                os.write(body);
+            }
+            mBytesSent += body.length;
+
+            final int responseCode = urlConnection.getResponseCode();
+            if (DEBUG) Log.d(TAG, "server response code=" + responseCode + ", sent "
+                    + body.length + " bytes");
+            final String response = readResponse(responseCode < HttpURLConnection.HTTP_BAD_REQUEST
+                    ? urlConnection.getInputStream() : urlConnection.getErrorStream());
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.w(TAG, "failed sending, server returned: " + response);
+            }
+            return responseCode;
+        } catch (IOException e) {
+            // Don't put a broken connection back in the pool
+            urlConnection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the size of all the request bodies written so far
+     */
+    long getBytesSent() {
+        return mBytesSent;
+    }
+
+    private static byte[] encode(JSONObject checkIn, boolean gzip) throws IOException {
+        final byte[] json = checkIn.toString().getBytes(StandardCharsets.UTF_8);
+        if (!gzip) {
+            return json;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length);
+        try (GZIPOutputStream os = new GZIPOutputStream(bytes)) {
+            os.write(json);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the whole response, which lets the connection be reused, and returns its
+     * beginning.
+     */
+    private static String readResponse(InputStream is) throws IOException {
+        if (is == null) {
+            return "";
+        }
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try (InputStream in = is) {
+            byte[] buffer = new byte[MAX_LOGGED_RESPONSE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                final int keep = Math.min(read, MAX_LOGGED_RESPONSE - response.size());
+                if (keep > 0) {
+                    response.write(buffer, 0, keep);
+                }
+            }
+        }
+        return response.toString(StandardCharsets.UTF_8.name());
+    }
+}
@@ -18,6 +18,7 @@
 package org.lineageos.lineageparts.lineagestats;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.SystemProperties;
 import android.provider.Settings;
@@ -31,6 +32,91 @@ import java.security.MessageDigest;
 import java.util.Locale;
 
 public class Utilities {
+    // Bump when the way the identity fields are computed changes
+    private static final int IDENTITY_VERSION = 2;
+
+    private static final String KEY_IDENTITY_VERSION = "identity_version";
+    private static final String KEY_IDENTITY_UNIQUE_ID = "identity_unique_id";
+    private static final String KEY_IDENTITY_COUNTRY = "identity_country";
+    private static final String KEY_IDENTITY_CARRIER = "identity_carrier";
+    private static final String KEY_IDENTITY_CARRIER_ID = "identity_carrier_id";
+
+    private static Identity sIdentity;
+
+    /**
+     * The identity fields of a check-in which are expensive to compute.
+     */
+    public static class Identity {
+        public final String uniqueId;
+        public final String countryCode;
+        public final String carrier;
+        public final String carrierId;
+
+        private Identity(String uniqueId, String countryCode, String carrier,
+                String carrierId) {
+            this.uniqueId = uniqueId;
+            this.countryCode = countryCode;
+            this.carrier = carrier;
+            this.carrierId = carrierId;
+        }
+    }
+
+    /**
+     * Returns the identity fields, computed once and then persisted until
+     * {@link #invalidateIdentity(Context)} is called.
+     *
+     * Only values read from the SIM are persisted, as they don't change until the SIM
+     * does. Until the SIM is ready, or on devices without one, the fields are computed
+     * from the network on every call instead, so no placeholder is ever stored.
+     */
+    public static synchronized Identity getIdentity(Context context) {
+        if (sIdentity != null) {
+            return sIdentity;
+        }
+
+        SharedPreferences prefs = AnonymousStats.getPreferences(context);
+        if (prefs.getInt(KEY_IDENTITY_VERSION, 0) == IDENTITY_VERSION) {
+            sIdentity = new Identity(prefs.getString(KEY_IDENTITY_UNIQUE_ID, null),
+                    prefs.getString(KEY_IDENTITY_COUNTRY, null),
+                    prefs.getString(KEY_IDENTITY_CARRIER, null),
+                    prefs.getString(KEY_IDENTITY_CARRIER_ID, null));
+            return sIdentity;
+        }
+
+        final String uniqueId = getUniqueID(context);
+        TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+        final String simCountry = tm.getSimCountryIso();
+        final String simCarrier = tm.getSimOperatorName();
+        final String simCarrierId = tm.getSimOperator();
+        if (TextUtils.isEmpty(simCountry) || TextUtils.isEmpty(simCarrier)
+                || TextUtils.isEmpty(simCarrierId)) {
+            return new Identity(uniqueId, getCountryCode(context),
+                    getCarrier(context), getCarrierId(context));
+        }
+
+        sIdentity = new Identity(uniqueId, simCountry.toUpperCase(), simCarrier, simCarrierId);
+        prefs.edit()
+                .putInt(KEY_IDENTITY_VERSION, IDENTITY_VERSION)
+                .putString(KEY_IDENTITY_UNIQUE_ID, sIdentity.uniqueId)
+                .putString(KEY_IDENTITY_COUNTRY, sIdentity.countryCode)
+                .putString(KEY_IDENTITY_CARRIER, sIdentity.carrier)
+                .putString(KEY_IDENTITY_CARRIER_ID, sIdentity.carrierId)
+                .apply();
+        return sIdentity;
+    }
+
+    /**
+     * Drops the identity fields, so they're computed again on next use. Called when
+     * the SIM or the locale change.
+     */
+    public static synchronized void invalidateIdentity(Context context) {
+        sIdentity = null;
+        AnonymousStats.getPreferences(context)
+                .edit()
+                .remove(KEY_IDENTITY_VERSION)
+                .apply();
+    }
+
     public static String getUniqueID(Context context) {
         final String id = Settings.Secure.getString(context.getContentResolver(),
                 Settings.Secure.ANDROID_ID);
@@ -19,12 +19,16 @@
 package org.lineageos.lineageparts.notificationlight;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Bitmap.Config;
+import android.graphics.Shader.TileMode;
 import android.graphics.drawable.Drawable;
+import android.util.SparseArray;
 
 /**
  * This drawable that draws a simple white and gray chess board pattern. It's
@@ -35,31 +39,23 @@ import android.graphics.drawable.Drawable;
  */
 public class AlphaPatternDrawable extends Drawable {
 
-    private final int mRectangleSize;
-
-    private final Paint mPaint = new Paint();
-    private final Paint mPaintWhite = new Paint();
-    private final Paint mPaintGray = new Paint();
-
-    private int numRectanglesHorizontal;
-    private int numRectanglesVertical;
-
     /**
-     * Bitmap in which the pattern will be cached.
+     * Tiles of the pattern, by rectangle size. They're shared by all the drawables, so
+     * the memory used doesn't depend on their number or size.
      */
-    private Bitmap mBitmap;
+    private static final SparseArray<Bitmap> sTiles = new SparseArray<>();
+
+    private final Paint mPaint = new Paint();
+    private final Matrix mMatrix = new Matrix();
 
     public AlphaPatternDrawable(int rectangleSize) {
-        mRectangleSize = rectangleSize;
-        mPaintWhite.setColor(0xffffffff);
-        mPaintGray.setColor(0xffcbcbcb);
+        mPaint.setShader(new BitmapShader(getTile(Math.max(rectangleSize, 1)),
+                TileMode.REPEAT, TileMode.REPEAT));
     }
 
     @Override
     public void draw(Canvas canvas) {
-        if (mBitmap != null) {
-            canvas.drawBitmap(mBitmap, null, getBounds(), mPaint);
-        }
+        canvas.drawRect(getBounds(), mPaint);
     }
 
     @Override
@@ -81,46 +77,32 @@ public class AlphaPatternDrawable extends Drawable {
     protected void onBoundsChange(Rect bounds) {
         super.onBoundsChange(bounds);
 
-        int height = bounds.height();
-        int width = bounds.width();
-
-        numRectanglesHorizontal = (int) Math.ceil((float) width / mRectangleSize);
-        numRectanglesVertical = (int) Math.ceil((float) height / mRectangleSize);
-
-        generatePatternBitmap();
+        // Start the pattern with a white rectangle in the top left corner
+        mMatrix.setTranslate(bounds.left, bounds.top);
+        mPaint.getShader().setLocalMatrix(mMatrix);
     }
 
     /**
-     * This will generate a bitmap with the pattern as big as the rectangle we
-     * were allow to draw on. We do this to cache the bitmap so we don't need
-     * to recreate it each time draw() is called since it takes a few
-     * milliseconds.
+     * Returns a tile of two by two rectangles of the pattern, generating it if it
+     * wasn't already.
      */
-    private void generatePatternBitmap() {
-
-        if (getBounds().width() <= 0 || getBounds().height() <= 0) {
-            return;
-        }
-
-        mBitmap = Bitmap.createBitmap(getBounds().width(), getBounds().height(), Config.ARGB_8888);
-        Canvas canvas = new Canvas(mBitmap);
-
-        Rect r = new Rect();
-        boolean verticalStartWhite = true;
-        for (int i = 0; i <= numRectanglesVertical; i++) {
-            boolean isWhite = verticalStartWhite;
-            for (int j = 0; j <= numRectanglesHorizontal; j++) {
-                r.top = i * mRectangleSize;
-                r.left = j * mRectangleSize;
-                r.bottom = r.top + mRectangleSize;
-                r.right = r.left + mRectangleSize;
-
-                canvas.drawRect(r, isWhite ? mPaintWhite : mPaintGray);
-
-                isWhite = !isWhite;
-            }
-
-            verticalStartWhite = !verticalStartWhite;
+    private static synchronized Bitmap getTile(int rectangleSize) {
+        Bitmap tile = sTiles.get(rectangleSize);
+        if (tile == null) {
+            Paint paintWhite = new Paint();
+            Paint paintGray = new Paint();
+            paintWhite.setColor(0xffffffff);
+            paintGray.setColor(0xffcbcbcb);
+
+            tile = Bitmap.createBitmap(rectangleSize * 2, rectangleSize * 2, Config.ARGB_8888);
+            Canvas canvas = new Canvas(tile);
+            canvas.drawRect(0, 0, rectangleSize, rectangleSize, paintWhite);
+            canvas.drawRect(rectangleSize, 0, rectangleSize * 2, rectangleSize, paintGray);
+            canvas.drawRect(0, rectangleSize, rectangleSize, rectangleSize * 2, paintGray);
+            canvas.drawRect(rectangleSize, rectangleSize, rectangleSize * 2, rectangleSize * 2,
+                    paintWhite);
+            sTiles.put(rectangleSize, tile);
         }
+        return tile;
     }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2022 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineageparts.notificationlight;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The per-application notification light values, as stored in
+ * NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES: "package=color;on;off" entries joined by '|'.
+ * Entries are indexed by package when read, but only decoded when accessed, and the
+ * entries which weren't accessed are written back as they were read.
+ */
+class ApplicationLightValues {
+
+    // Encoded entries, by package, in setting order
+    private final LinkedHashMap<String, String> mEntries = new LinkedHashMap<>();
+    // Decoded entries, by package
+    private final Map<String, Package> mDecoded = new HashMap<>();
+
+    static ApplicationLightValues parse(String value) {
+        ApplicationLightValues values = new ApplicationLightValues();
+        if (value != null) {
+            for (String entry : TextUtils.split(value, "\\|")) {
+                final int separator = entry.indexOf('=');
+                if (separator > 0) {
+                    values.mEntries.put(entry.substring(0, separator), entry);
+                }
+            }
+        }
+        return values;
+    }
+
+    List<String> getPackageNames() {
+        return new ArrayList<>(mEntries.keySet());
+    }
+
+    /**
+     * Returns the values of a package, or null if there are none or they're invalid.
+     * The returned values can be modified in place.
+     */
+    Package get(String packageName) {
+        Package pkg = mDecoded.get(packageName);
+        if (pkg == null) {
+            final String entry = mEntries.get(packageName);
+            if (entry == null) {
+                return null;
+            }
+            pkg = Package.fromString(entry);
+            if (pkg == null) {
+                // Invalid entries are dropped
+                mEntries.remove(packageName);
+                return null;
+            }
+            mDecoded.put(packageName, pkg);
+        }
+        return pkg;
+    }
+
+    void put(Package pkg) {
+        mEntries.put(pkg.name, null);
+        mDecoded.put(pkg.name, pkg);
+    }
+
+    boolean remove(String packageName) {
+        mDecoded.remove(packageName);
+        if (!mEntries.containsKey(packageName)) {
+            return false;
+        }
+        mEntries.remove(packageName);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        List<String> settings = new ArrayList<>(mEntries.size());
+        for (Map.Entry<String, String> entry : mEntries.entrySet()) {
+            // Only the decoded entries may have changed
+            Package pkg = mDecoded.get(entry.getKey());
+            settings.add(pkg != null ? pkg.toString() : entry.getValue());
+        }
+        return TextUtils.join("|", settings);
+    }
+
+    /**
+     * Application class
+     */
+    static class Package {
+        public String name;
+        public Integer color;
+        public Integer timeon;
+        public Integer timeoff;
+
+        /**
+         * Stores all the application values in one call
+         */
+        public Package(String name, Integer color, Integer timeon, Integer timeoff) {
+            this.name = name;
+            this.color = color;
+            this.timeon = timeon;
+            this.timeoff = timeoff;
+        }
+
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(name);
+            builder.append("=");
+            builder.append(color);
+            builder.append(";");
+            builder.append(timeon);
+            builder.append(";");
+            builder.append(timeoff);
+            return builder.toString();
+        }
+
+        public static Package fromString(String value) {
+            if (TextUtils.isEmpty(value)) {
+                return null;
+            }
+            String[] app = value.split("=", -1);
+            if (app.length != 2)
+                return null;
+
+            String[] values = app[1].split(";", -1);
+            if (values.length != 3)
+                return null;
+
+            try {
+                return new Package(app[0], Integer.parseInt(values[0]), Integer
+                        .parseInt(values[1]), Integer.parseInt(values[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+    }
+}
@@ -32,6 +32,10 @@ import androidx.preference.PreferenceScreen;
 import org.lineageos.internal.notification.LightsCapabilities;
 import org.lineageos.lineageparts.R;
 import org.lineageos.lineageparts.SettingsPreferenceFragment;
+import org.lineageos.lineageparts.utils.LineageSettingsWriter;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 import lineageos.preference.LineageSystemSettingMainSwitchPreference;
 import lineageos.preference.LineageSystemSettingSwitchPreference;
@@ -160,6 +164,14 @@ public class BatteryLightSettings extends SettingsPreferenceFragment implements
         refreshColors();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("LED preview:");
+        LightSettingsDialog.dumpLedPreviewMetrics(prefix + "  ", writer);
+    }
+
     private void refreshColors() {
         ContentResolver resolver = getActivity().getContentResolver();
         Resources res = getResources();
@@ -240,12 +252,11 @@ public class BatteryLightSettings extends SettingsPreferenceFragment implements
         ContentResolver resolver = getActivity().getContentResolver();
 
         // Reset to the framework default colors
-        LineageSettings.System.putInt(resolver, LineageSettings.System.BATTERY_LIGHT_LOW_COLOR,
-                mDefaultLowColor);
-        LineageSettings.System.putInt(resolver, LineageSettings.System.BATTERY_LIGHT_MEDIUM_COLOR,
-                mDefaultMediumColor);
-        LineageSettings.System.putInt(resolver, LineageSettings.System.BATTERY_LIGHT_FULL_COLOR,
-                mDefaultFullColor);
+        LineageSettingsWriter.system(resolver)
+                .putInt(LineageSettings.System.BATTERY_LIGHT_LOW_COLOR, mDefaultLowColor)
+                .putInt(LineageSettings.System.BATTERY_LIGHT_MEDIUM_COLOR, mDefaultMediumColor)
+                .putInt(LineageSettings.System.BATTERY_LIGHT_FULL_COLOR, mDefaultFullColor)
+                .commit();
         refreshColors();
     }
 
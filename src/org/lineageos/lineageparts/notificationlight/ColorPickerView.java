@@ -21,17 +21,14 @@ package org.lineageos.lineageparts.notificationlight;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.ComposeShader;
 import android.graphics.LinearGradient;
 import android.graphics.Paint;
 import android.graphics.Point;
-import android.graphics.PorterDuff.Mode;
 import android.graphics.RectF;
 import android.graphics.Shader;
 import android.graphics.Paint.Align;
 import android.graphics.Paint.Style;
 import android.graphics.Shader.TileMode;
-import android.os.Build;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
@@ -85,6 +82,8 @@ public class ColorPickerView extends View {
     private OnColorChangedListener mListener;
 
     private Paint mSatValPaint;
+    private Paint mSatPaint;
+    private Paint mValPaint;
     private Paint mSatValTrackerPaint;
 
     private Paint mHuePaint;
@@ -99,12 +98,22 @@ public class ColorPickerView extends View {
     private Shader mSatShader;
     private Shader mHueShader;
     private Shader mAlphaShader;
+    private int mAlphaShaderColor;
 
     private int mAlpha = 0xff;
     private float mHue = 360f;
     private float mSat = 0f;
     private float mVal = 0f;
 
+    /*
+     * Reused by the drawing and touch handling code, which runs for every frame of a drag
+     * and shouldn't allocate.
+     */
+    private final float[] mHsv = new float[3];
+    private final float[] mSatVal = new float[2];
+    private final Point mTrackerPoint = new Point();
+    private final RectF mTrackerRect = new RectF();
+
     private final static String ALPHA_SLIDER_TEXT = "Alpha";
     private final static int SLIDER_TRACKER_COLOR = 0xff1c1c1c;
     private final static int BORDER_COLOR = 0xff6E6E6E;
@@ -167,6 +176,8 @@ public class ColorPickerView extends View {
 
     private void initPaintTools() {
         mSatValPaint = new Paint();
+        mSatPaint = new Paint();
+        mValPaint = new Paint();
         mSatValTrackerPaint = new Paint();
         mHuePaint = new Paint();
         mHueTrackerPaint = new Paint();
@@ -221,9 +232,10 @@ public class ColorPickerView extends View {
 
     private void drawSatValPanel(Canvas canvas) {
         final RectF rect = mSatValRect;
-        int rgb = Color.HSVToColor(new float[] {
-                mHue, 1f, 1f
-        });
+        mHsv[0] = mHue;
+        mHsv[1] = 1f;
+        mHsv[2] = 1f;
+        int rgb = Color.HSVToColor(mHsv);
 
         if (BORDER_WIDTH_PX > 0) {
             mBorderPaint.setColor(BORDER_COLOR);
@@ -231,21 +243,12 @@ public class ColorPickerView extends View {
                     rect.bottom + BORDER_WIDTH_PX, mBorderPaint);
         }
 
-        // On Honeycomb+ we need to use software rendering to create the shader properly
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            setLayerType(View.LAYER_TYPE_SOFTWARE, null);
-        }
-
-        // Get the overlaying gradients ready and create the ComposeShader
-        if (mValShader == null) {
-            mValShader = new LinearGradient(rect.left, rect.top, rect.left, rect.bottom,
-                    0xffffffff, 0xff000000, TileMode.CLAMP);
-        }
-        mSatShader = new LinearGradient(rect.left, rect.top, rect.right, rect.top,
-                0xffffffff, rgb, TileMode.CLAMP);
-        ComposeShader mShader = new ComposeShader(mValShader, mSatShader, Mode.MULTIPLY);
-        mSatValPaint.setShader(mShader);
+        // The hue, faded to white by the saturation and then to black by the value. The
+        // gradients don't depend on the hue, so they are only created with the panel.
+        mSatValPaint.setColor(rgb);
         canvas.drawRect(rect, mSatValPaint);
+        canvas.drawRect(rect, mSatPaint);
+        canvas.drawRect(rect, mValPaint);
 
         Point p = satValToPoint(mSat, mVal);
         mSatValTrackerPaint.setColor(0xff000000);
@@ -267,19 +270,13 @@ public class ColorPickerView extends View {
                     mBorderPaint);
         }
 
-        if (mHueShader == null) {
-            mHueShader = new LinearGradient(rect.left, rect.top, rect.left, rect.bottom,
-                    buildHueColorArray(), null, TileMode.CLAMP);
-            mHuePaint.setShader(mHueShader);
-        }
-
         canvas.drawRect(rect, mHuePaint);
 
         float rectHeight = 4 * mDensity / 2;
 
         Point p = hueToPoint(mHue);
 
-        RectF r = new RectF();
+        final RectF r = mTrackerRect;
         r.left = rect.left - RECTANGLE_TRACKER_OFFSET;
         r.right = rect.right + RECTANGLE_TRACKER_OFFSET;
         r.top = p.y - rectHeight;
@@ -307,16 +304,14 @@ public class ColorPickerView extends View {
 
         mAlphaPattern.draw(canvas);
 
-        float[] hsv = new float[] {
-                mHue, mSat, mVal
-        };
-        int color = Color.HSVToColor(hsv);
-        int acolor = Color.HSVToColor(0, hsv);
-
-        mAlphaShader = new LinearGradient(rect.left, rect.top, rect.right, rect.top,
-                color, acolor, TileMode.CLAMP);
-
-        mAlphaPaint.setShader(mAlphaShader);
+        // Only changing the alpha doesn't change the shader
+        int color = getCurrentColor(0xff);
+        if (mAlphaShader == null || mAlphaShaderColor != color) {
+            mAlphaShader = new LinearGradient(rect.left, rect.top, rect.right, rect.top,
+                    color, color & 0x00ffffff, TileMode.CLAMP);
+            mAlphaShaderColor = color;
+            mAlphaPaint.setShader(mAlphaShader);
+        }
 
         canvas.drawRect(rect, mAlphaPaint);
 
@@ -326,7 +321,7 @@ public class ColorPickerView extends View {
         float rectWidth = 4 * mDensity / 2;
         Point p = alphaToPoint(mAlpha);
 
-        RectF r = new RectF();
+        final RectF r = mTrackerRect;
         r.left = p.x - rectWidth;
         r.right = p.x + rectWidth;
         r.top = rect.top - RECTANGLE_TRACKER_OFFSET;
@@ -339,7 +334,7 @@ public class ColorPickerView extends View {
         final RectF rect = mHueRect;
         final float height = rect.height();
 
-        Point p = new Point();
+        final Point p = mTrackerPoint;
         p.y = (int) (height - (hue * height / 360f) + rect.top);
         p.x = (int) rect.left;
         return p;
@@ -351,7 +346,7 @@ public class ColorPickerView extends View {
         final float height = rect.height();
         final float width = rect.width();
 
-        Point p = new Point();
+        final Point p = mTrackerPoint;
 
         p.x = (int) (sat * width + rect.left);
         p.y = (int) ((1f - val) * height + rect.top);
@@ -363,7 +358,7 @@ public class ColorPickerView extends View {
         final RectF rect = mAlphaRect;
         final float width = rect.width();
 
-        Point p = new Point();
+        final Point p = mTrackerPoint;
         p.x = (int) (width - (alpha * width / 0xff) + rect.left);
         p.y = (int) rect.top;
         return p;
@@ -371,7 +366,7 @@ public class ColorPickerView extends View {
 
     private float[] pointToSatVal(float x, float y) {
         final RectF rect = mSatValRect;
-        float[] result = new float[2];
+        final float[] result = mSatVal;
         float width = rect.width();
         float height = rect.height();
 
@@ -481,9 +476,7 @@ public class ColorPickerView extends View {
 
         if (update) {
             if (mListener != null) {
-                mListener.onColorChanged(Color.HSVToColor(mAlpha, new float[] {
-                        mHue, mSat, mVal
-                }));
+                mListener.onColorChanged(getCurrentColor(mAlpha));
             }
             invalidate();
             return true;
@@ -512,9 +505,7 @@ public class ColorPickerView extends View {
         if (update) {
             requestFocus();
             if (mListener != null) {
-                mListener.onColorChanged(Color.HSVToColor(mAlpha, new float[] {
-                        mHue, mSat, mVal
-                }));
+                mListener.onColorChanged(getCurrentColor(mAlpha));
             }
             invalidate();
             return true;
@@ -649,6 +640,13 @@ public class ColorPickerView extends View {
         float bottom = top + panelSide;
         float right = left + panelSide;
         mSatValRect = new RectF(left, top, right, bottom);
+
+        mSatShader = new LinearGradient(left, top, right, top,
+                0xffffffff, 0x00ffffff, TileMode.CLAMP);
+        mSatPaint.setShader(mSatShader);
+        mValShader = new LinearGradient(left, top, left, bottom,
+                0x00000000, 0xff000000, TileMode.CLAMP);
+        mValPaint.setShader(mValShader);
     }
 
     private void setUpHueRect() {
@@ -661,6 +659,10 @@ public class ColorPickerView extends View {
         float right = dRect.right - BORDER_WIDTH_PX;
 
         mHueRect = new RectF(left, top, right, bottom);
+
+        mHueShader = new LinearGradient(left, top, left, bottom,
+                buildHueColorArray(), null, TileMode.CLAMP);
+        mHuePaint.setShader(mHueShader);
     }
 
     private void setUpAlphaRect() {
@@ -675,6 +677,7 @@ public class ColorPickerView extends View {
         float right = dRect.right - BORDER_WIDTH_PX;
 
         mAlphaRect = new RectF(left, top, right, bottom);
+        mAlphaShader = null;
         mAlphaPattern = new AlphaPatternDrawable((int) (5 * mDensity));
         mAlphaPattern.setBounds(Math.round(mAlphaRect.left), Math
                 .round(mAlphaRect.top), Math.round(mAlphaRect.right), Math
@@ -695,9 +698,14 @@ public class ColorPickerView extends View {
      * @return the current color.
      */
     public int getColor() {
-        return Color.HSVToColor(mAlpha, new float[] {
-                mHue, mSat, mVal
-        });
+        return getCurrentColor(mAlpha);
+    }
+
+    private int getCurrentColor(int alpha) {
+        mHsv[0] = mHue;
+        mHsv[1] = mSat;
+        mHsv[2] = mVal;
+        return Color.HSVToColor(alpha, mHsv);
     }
 
     /**
@@ -730,9 +738,7 @@ public class ColorPickerView extends View {
         mVal = hsv[2];
 
         if (callback && mListener != null) {
-            mListener.onColorChanged(Color.HSVToColor(mAlpha, new float[] {
-                    mHue, mSat, mVal
-            }));
+            mListener.onColorChanged(getCurrentColor(mAlpha));
         }
         invalidate();
     }
@@ -745,14 +751,7 @@ public class ColorPickerView extends View {
         if (mShowAlphaPanel != visible) {
             mShowAlphaPanel = visible;
 
-            /*
-             * Reset all shader to force a recreation. Otherwise they will not
-             * look right after the size of the view has changed.
-             */
-            mValShader = null;
-            mSatShader = null;
-            mHueShader = null;
-            mAlphaShader = null;
+            // The panels and their shaders are set up again with the new layout
             requestLayout();
         }
 
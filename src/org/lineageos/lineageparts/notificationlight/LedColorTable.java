@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2022 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineageparts.notificationlight;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.palette.graphics.Palette;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persistent table of the automatic notification light color of every application,
+ * extracted from its icon. A color is extracted once per application version, either
+ * by a background pass over all the launchable applications or in the background on
+ * first use. Colors are never extracted on the calling thread.
+ */
+class LedColorTable {
+    private static final String TAG = "LedColorTable";
+
+    private static final String PREF_FILE_NAME = "notification_light_colors";
+    // Stored for the icons without any color, which use the current default color
+    private static final String NO_COLOR = "none";
+
+    private static LedColorTable sInstance;
+
+    interface OnColorExtractedListener {
+        /**
+         * Called on the main thread once the color of an application missing from the
+         * table was extracted, unless its icon has no color.
+         */
+        void onColorExtracted(String packageName, int color);
+    }
+
+    private final PackageManager mPm;
+    private final SharedPreferences mPrefs;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(r ->
+            new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, TAG));
+    private final AtomicBoolean mPrecomputing = new AtomicBoolean();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    static synchronized LedColorTable getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LedColorTable(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LedColorTable(Context context) {
+        mPm = context.getPackageManager();
+        mPrefs = context.getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the color of an application. If it isn't in the table for the installed
+     * version yet, the default color is returned, and the color is extracted in the
+     * background and passed to the listener.
+     */
+    int getColor(String packageName, int defaultColor, OnColorExtractedListener listener) {
+        final ApplicationInfo info;
+        try {
+            info = mPm.getApplicationInfo(packageName, 0);
+        } catch (NameNotFoundException e) {
+            // shouldn't happen, but just return default
+            return defaultColor;
+        }
+
+        final String color = getStoredColor(info);
+        if (color == null) {
+            mExecutor.execute(() -> {
+                try {
+                    final Integer extracted = new ColorExtractor().extract(info.loadIcon(mPm));
+                    mPrefs.edit().putString(packageName,
+                            toValue(info, toColorValue(extracted))).apply();
+                    if (extracted != null) {
+                        mHandler.post(() -> listener.onColorExtracted(packageName, extracted));
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed to extract the notification light color of "
+                            + packageName, e);
+                }
+            });
+            return defaultColor;
+        }
+        if (!NO_COLOR.equals(color)) {
+            try {
+                return Integer.parseInt(color);
+            } catch (NumberFormatException e) {
+                // Use the default
+            }
+        }
+        return defaultColor;
+    }
+
+    /**
+     * Extracts in the background the colors of all the launchable applications which
+     * aren't in the table for their installed version, and drops the colors of the
+     * applications which aren't installed anymore.
+     */
+    void precompute() {
+        if (!mPrecomputing.compareAndSet(false, true)) {
+            return;
+        }
+        mExecutor.execute(() -> {
+            try {
+                final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+                mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+                List<ResolveInfo> activities = mPm.queryIntentActivities(mainIntent, 0);
+
+                ColorExtractor extractor = new ColorExtractor();
+                SharedPreferences.Editor editor = mPrefs.edit();
+                Set<String> packages = new HashSet<>();
+                for (ResolveInfo activity : activities) {
+                    ApplicationInfo info = activity.activityInfo.applicationInfo;
+                    if (!packages.add(info.packageName) || getStoredColor(info) != null) {
+                        continue;
+                    }
+                    String color = toColorValue(extractor.extract(info.loadIcon(mPm)));
+                    editor.putString(info.packageName, toValue(info, color));
+                }
+                for (String packageName : mPrefs.getAll().keySet()) {
+                    if (!packages.contains(packageName) && !isInstalled(packageName)) {
+                        editor.remove(packageName);
+                    }
+                }
+                editor.apply();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to extract notification light colors", e);
+            } finally {
+                mPrecomputing.set(false);
+            }
+        });
+    }
+
+    /**
+     * Returns the stored color of the installed version of an application, either a
+     * color or {@link #NO_COLOR}, or null if it must be extracted.
+     */
+    private String getStoredColor(ApplicationInfo info) {
+        // Values are "<version code>:<color>"
+        final String value = mPrefs.getString(info.packageName, null);
+        if (value == null) {
+            return null;
+        }
+        final int separator = value.indexOf(':');
+        try {
+            if (separator > 0 && Long.parseLong(value.substring(0, separator))
+                    == info.longVersionCode) {
+                return value.substring(separator + 1);
+            }
+        } catch (NumberFormatException e) {
+            // Extract it again
+        }
+        return null;
+    }
+
+    private boolean isInstalled(String packageName) {
+        try {
+            mPm.getApplicationInfo(packageName, 0);
+            return true;
+        } catch (NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static String toValue(ApplicationInfo info, String color) {
+        return info.longVersionCode + ":" + color;
+    }
+
+    private static String toColorValue(Integer color) {
+        return color != null ? Integer.toString(color) : NO_COLOR;
+    }
+
+    /**
+     * Extracts the color of icons with {@link Palette}. Icons are drawn into the same
+     * small bitmap, so extracting the colors of many icons allocates little.
+     */
+    private static class ColorExtractor {
+        private static final int SIZE = 48;
+
+        private final Bitmap mBitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        private final Canvas mCanvas = new Canvas(mBitmap);
+
+        /**
+         * Returns the color of an icon, or null if it has none.
+         */
+        Integer extract(Drawable icon) {
+            if (icon == null) {
+                return null;
+            }
+            mBitmap.eraseColor(Color.TRANSPARENT);
+            icon.setBounds(0, 0, SIZE, SIZE);
+            icon.draw(mCanvas);
+
+            // Prefer a vibrant color, which makes for a recognizable light
+            Palette palette = Palette.from(mBitmap).generate();
+            Palette.Swatch swatch = palette.getVibrantSwatch();
+            if (swatch == null) {
+                swatch = palette.getLightVibrantSwatch();
+            }
+            if (swatch == null) {
+                swatch = palette.getDarkVibrantSwatch();
+            }
+            if (swatch == null) {
+                swatch = palette.getDominantSwatch();
+            }
+            return swatch != null ? swatch.getRgb() : null;
+        }
+    }
+}
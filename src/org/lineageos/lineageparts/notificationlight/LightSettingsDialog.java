@@ -27,7 +27,7 @@ import android.graphics.PixelFormat;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Message;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.text.InputFilter;
@@ -52,6 +52,7 @@ import org.lineageos.internal.notification.LightsCapabilities;
 import org.lineageos.internal.notification.LineageNotification;
 import org.lineageos.lineageparts.R;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Locale;
 
@@ -62,6 +63,9 @@ public class LightSettingsDialog extends AlertDialog implements
     // Minimum delay between LED notification updates
     private final static long LED_UPDATE_DELAY_MS = 250;
 
+    private static final LedPreviewMetrics sLedMetrics = new LedPreviewMetrics();
+    private static boolean sLedChannelCreated;
+
     private ColorPickerView mColorPicker;
 
     private EditText mHexColorInput;
@@ -74,7 +78,16 @@ public class LightSettingsDialog extends AlertDialog implements
 
     private NotificationManager mNotificationManager;
 
+    private final Handler mLedHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mLedUpdater = this::showLed;
+    private Notification.Builder mLedBuilder;
+    private String mLedChannelId;
+
     private boolean mReadyForLed;
+    // Uptime of the oldest change the LED doesn't show yet, or 0
+    private long mLedRequestTime;
+    private long mLedLastUpdateTime;
+    private boolean mLedShown;
     private int mLedLastColor;
     private int mLedLastSpeedOn;
     private int mLedLastSpeedOff;
@@ -102,9 +115,10 @@ public class LightSettingsDialog extends AlertDialog implements
             boolean onOffChangeable, int brightness) {
         mContext = context;
         mNotificationManager = mContext.getSystemService(NotificationManager.class);
+        mLedChannelId = mContext.getString(R.string.channel_light_settings_id);
 
         mReadyForLed = false;
-        mLedLastColor = 0;
+        mLedShown = false;
 
         // To fight color banding.
         getWindow().setFormat(PixelFormat.RGBA_8888);
@@ -267,17 +281,29 @@ public class LightSettingsDialog extends AlertDialog implements
         mPulseSpeedOff.setSelection(mPulseSpeedAdapterOff.getTimePosition(speedOff));
     }
 
-    private final Handler mLedHandler = new Handler(Looper.getMainLooper()) {
-        public void handleMessage(Message msg) {
-            updateLed();
-        }
-    };
-
+    /**
+     * Requests the LED to show the current values. Changes are coalesced, so the LED is
+     * updated right away and then at most every LED_UPDATE_DELAY_MS, always with the
+     * latest values.
+     */
     private void updateLed() {
         if (!mReadyForLed) {
             return;
         }
 
+        sLedMetrics.onUpdateRequested();
+        if (mLedRequestTime == 0) {
+            mLedRequestTime = SystemClock.uptimeMillis();
+        }
+        if (mLedHandler.hasCallbacks(mLedUpdater)) {
+            // The pending update will pick up this change
+            return;
+        }
+        mLedHandler.postAtTime(mLedUpdater, Math.max(SystemClock.uptimeMillis(),
+                mLedLastUpdateTime + LED_UPDATE_DELAY_MS));
+    }
+
+    private void showLed() {
         final int color = getColor() & 0xFFFFFF;
         final int speedOn, speedOff;
         if (mPulseSpeedOn.isEnabled()) {
@@ -288,41 +314,36 @@ public class LightSettingsDialog extends AlertDialog implements
             speedOff = 0;
         }
 
-        if (mLedLastColor == color && mLedLastSpeedOn == speedOn && mLedLastSpeedOff == speedOff
-                && mLedLastBrightness == mLedBrightness) {
+        if (mLedShown && mLedLastColor == color && mLedLastSpeedOn == speedOn
+                && mLedLastSpeedOff == speedOff && mLedLastBrightness == mLedBrightness) {
+            mLedRequestTime = 0;
             return;
         }
 
-        // Dampen rate of consecutive LED changes
-        if (mLedHandler.hasMessages(0)) {
-            return;
-        }
-        mLedHandler.sendEmptyMessageDelayed(0, LED_UPDATE_DELAY_MS);
-
-        // Set a notification to display the LED color
-        final Bundle b = new Bundle();
+        // Set a notification to display the LED color. The builder always returns the
+        // same notification, which is only read by notify().
+        final long start = SystemClock.uptimeMillis();
+        final Notification notification = getLedBuilder()
+                .setLights(color, speedOn, speedOff)
+                .build();
+        final Bundle b = notification.extras;
         b.putBoolean(LineageNotification.EXTRA_FORCE_SHOW_LIGHTS, true);
         if  (mLedBrightness > 0 && mLedBrightness < LedValues.LIGHT_BRIGHTNESS_MAXIMUM) {
             b.putInt(LineageNotification.EXTRA_FORCE_LIGHT_BRIGHTNESS, mLedBrightness);
+        } else {
+            b.remove(LineageNotification.EXTRA_FORCE_LIGHT_BRIGHTNESS);
         }
         b.putInt(LineageNotification.EXTRA_FORCE_COLOR, color);
         b.putInt(LineageNotification.EXTRA_FORCE_LIGHT_ON_MS, speedOn);
         b.putInt(LineageNotification.EXTRA_FORCE_LIGHT_OFF_MS, speedOff);
+        mNotificationManager.notify(mLedChannelId, 1, notification);
 
-        createNotificationChannel();
-
-        final String channelId = mContext.getString(R.string.channel_light_settings_id);
-        final Notification.Builder builder = new Notification.Builder(mContext, channelId);
-        builder.setLights(color, speedOn, speedOff);
-        builder.setExtras(b);
-        builder.setSmallIcon(R.drawable.ic_settings_24dp);
-        builder.setContentTitle(mContext.getString(R.string.led_notification_title));
-        builder.setContentText(mContext.getString(R.string.led_notification_text));
-        builder.setOngoing(true);
-
-        final Notification notification = builder.build();
-        mNotificationManager.notify(channelId, 1, notification);
+        final long now = SystemClock.uptimeMillis();
+        sLedMetrics.onLedUpdated(now - mLedRequestTime, now - start);
+        mLedRequestTime = 0;
+        mLedLastUpdateTime = now;
 
+        mLedShown = true;
         mLedLastColor = color;
         mLedLastSpeedOn = speedOn;
         mLedLastSpeedOff = speedOff;
@@ -330,23 +351,47 @@ public class LightSettingsDialog extends AlertDialog implements
     }
 
     public void dismissLed() {
-        final String channelId = mContext.getString(R.string.channel_light_settings_id);
-        mNotificationManager.cancel(channelId, 1);
+        mLedHandler.removeCallbacks(mLedUpdater);
+        mLedRequestTime = 0;
+        mNotificationManager.cancel(mLedChannelId, 1);
         // ensure we later reset LED if dialog is
         // hidden and then made visible
-        mLedLastColor = 0;
+        mLedShown = false;
+    }
+
+    private Notification.Builder getLedBuilder() {
+        if (mLedBuilder == null) {
+            createNotificationChannel();
+            mLedBuilder = new Notification.Builder(mContext, mLedChannelId)
+                    .setSmallIcon(R.drawable.ic_settings_24dp)
+                    .setContentTitle(mContext.getString(R.string.led_notification_title))
+                    .setContentText(mContext.getString(R.string.led_notification_text))
+                    .setOngoing(true);
+        }
+        return mLedBuilder;
     }
 
     private void createNotificationChannel() {
-        final String channelId = mContext.getString(R.string.channel_light_settings_id);
+        // The channel doesn't change, so it's only created once per process
+        if (sLedChannelCreated) {
+            return;
+        }
         final String channelName = mContext.getString(R.string.channel_light_settings_name);
         final NotificationChannel notificationChannel = new NotificationChannel(
-                channelId, channelName, NotificationManager.IMPORTANCE_LOW);
+                mLedChannelId, channelName, NotificationManager.IMPORTANCE_LOW);
         notificationChannel.enableLights(true);
         notificationChannel.enableVibration(false);
         notificationChannel.setShowBadge(false);
 
         mNotificationManager.createNotificationChannel(notificationChannel);
+        sLedChannelCreated = true;
+    }
+
+    /**
+     * Dumps the latency of the LED previews of all the dialogs.
+     */
+    static void dumpLedPreviewMetrics(String prefix, PrintWriter pw) {
+        sLedMetrics.dump(prefix, pw);
     }
 
     class PulseSpeedAdapter extends BaseAdapter implements SpinnerAdapter {
@@ -431,6 +476,45 @@ public class LightSettingsDialog extends AlertDialog implements
         }
     }
 
+    /**
+     * Latency from a change in the dialog to the LED notification reflecting it. The time
+     * spent posting the notification is tracked separately from the coalescing delay.
+     * Only used on the main thread.
+     */
+    private static class LedPreviewMetrics {
+        private int mRequests;
+        private int mUpdates;
+        private long mTotalLatency;
+        private long mMaxLatency;
+        private long mTotalNotifyTime;
+        private long mMaxNotifyTime;
+
+        void onUpdateRequested() {
+            mRequests++;
+        }
+
+        void onLedUpdated(long latency, long notifyTime) {
+            mUpdates++;
+            mTotalLatency += latency;
+            mMaxLatency = Math.max(mMaxLatency, latency);
+            mTotalNotifyTime += notifyTime;
+            mMaxNotifyTime = Math.max(mMaxNotifyTime, notifyTime);
+        }
+
+        void dump(String prefix, PrintWriter pw) {
+            pw.print(prefix);
+            pw.print("requests=" + mRequests);
+            pw.print(" updates=" + mUpdates);
+            if (mUpdates > 0) {
+                pw.print(" latency avg=" + (mTotalLatency / mUpdates) + "ms");
+                pw.print(" max=" + mMaxLatency + "ms");
+                pw.print(" notify avg=" + (mTotalNotifyTime / mUpdates) + "ms");
+                pw.print(" max=" + mMaxNotifyTime + "ms");
+            }
+            pw.println();
+        }
+    }
+
     @Override
     public void beforeTextChanged(CharSequence s, int start, int count, int after) {
     }
@@ -41,19 +41,19 @@ import androidx.preference.PreferenceScreen;
 import org.lineageos.internal.notification.LightsCapabilities;
 import org.lineageos.lineageparts.widget.PackageListAdapter;
 import org.lineageos.lineageparts.widget.PackageListAdapter.PackageItem;
+import org.lineageos.lineageparts.notificationlight.ApplicationLightValues.Package;
 import org.lineageos.lineageparts.R;
 import org.lineageos.lineageparts.SettingsPreferenceFragment;
+import org.lineageos.lineageparts.utils.LineageSettingsWriter;
+import org.lineageos.lineageparts.utils.PackageIconCache;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
 
 import lineageos.preference.LineageSystemSettingSwitchPreference;
 import lineageos.preference.SystemSettingMainSwitchPreference;
 import lineageos.providers.LineageSettings;
-import lineageos.util.ColorUtils;
 
 public class NotificationLightSettings extends SettingsPreferenceFragment implements
         Preference.OnPreferenceChangeListener, ApplicationLightPreference.ItemLongClickListener {
@@ -78,6 +78,7 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
     private int mDefaultLedOn;
     private int mDefaultLedOff;
     private PackageManager mPackageManager;
+    private PackageIconCache mIconCache;
     private PreferenceGroup mApplicationPrefList;
     private SystemSettingMainSwitchPreference mEnabledPref;
     private LineageSystemSettingSwitchPreference mCustomEnabledPref;
@@ -88,7 +89,7 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
     private ApplicationLightPreference mVoicemailPref;
     private PackageListAdapter mPackageAdapter;
     private String mPackageList;
-    private Map<String, Package> mPackages;
+    private ApplicationLightValues mPackages;
     // Supports rgb color control
     private boolean mMultiColorLed;
     // Supports adjustable pulse
@@ -174,9 +175,10 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
 
             // Get launch-able applications
             mPackageManager = getActivity().getPackageManager();
+            mIconCache = PackageIconCache.getInstance(getActivity());
             mPackageAdapter = new PackageListAdapter(getActivity());
 
-            mPackages = new HashMap<>();
+            mPackages = ApplicationLightValues.parse(null);
 
             Preference addPreference = prefSet.findPreference(ADD_APPS);
             addPreference.setOnPreferenceClickListener(preference -> {
@@ -197,12 +199,31 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
         watch(Settings.System.getUriFor(Settings.System.NOTIFICATION_LIGHT_PULSE));
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mPackageAdapter != null) {
+            mPackageAdapter.destroy();
+        }
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("LED preview:");
+        LightSettingsDialog.dumpLedPreviewMetrics(prefix + "  ", writer);
+    }
+
     @Override
     public void onResume() {
         super.onResume();
         refreshDefault();
         refreshCustomApplicationPrefs();
         getActivity().invalidateOptionsMenu();
+        if (mPackageAdapter != null && isAutoColorEnabled()) {
+            LedColorTable.getInstance(getActivity()).precompute();
+        }
     }
 
     private void refreshDefault() {
@@ -294,7 +315,11 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
                 mApplicationPrefList.removePreference(pref);
             }
 
-            for (Package pkg : mPackages.values()) {
+            for (String packageName : mPackages.getPackageNames()) {
+                Package pkg = mPackages.get(packageName);
+                if (pkg == null) {
+                    continue;
+                }
                 try {
                     PackageInfo info = mPackageManager.getPackageInfo(pkg.name,
                             PackageManager.GET_META_DATA);
@@ -303,8 +328,13 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
                                     pkg.color, pkg.timeon, pkg.timeoff);
 
                     pref.setKey(pkg.name);
-                    pref.setTitle(info.applicationInfo.loadLabel(mPackageManager));
-                    pref.setIcon(info.applicationInfo.loadIcon(mPackageManager));
+                    pref.setTitle(mIconCache.getLabel(info.applicationInfo));
+                    Drawable icon = mIconCache.getCachedIcon(info.applicationInfo);
+                    if (icon != null) {
+                        pref.setIcon(icon);
+                    } else {
+                        mIconCache.loadIcon(info.applicationInfo, pref::setIcon);
+                    }
                     pref.setPersistent(false);
                     pref.setOnPreferenceChangeListener(this);
                     pref.setOnLongClickListener(this);
@@ -315,7 +345,7 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
             }
 
             maybeDisplayApplicationHint(context);
-            mPackageAdapter.setExcludedPackages(new HashSet<String>(mPackages.keySet()));
+            mPackageAdapter.setExcludedPackages(new HashSet<String>(mPackages.getPackageNames()));
         }
     }
 
@@ -333,34 +363,47 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
         }
     }
 
-    private int getInitialColorForPackage(String packageName) {
-        boolean autoColor = LineageSettings.System.getInt(getActivity().getContentResolver(),
+    private boolean isAutoColorEnabled() {
+        return LineageSettings.System.getInt(getActivity().getContentResolver(),
                 LineageSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO, mMultiColorLed ? 1 : 0) == 1;
+    }
+
+    private int getInitialColorForPackage(String packageName) {
         int color = mDefaultColor;
-        if (autoColor) {
-            try {
-                Drawable icon = mPackageManager.getApplicationIcon(packageName);
-                color = ColorUtils.generateAlertColorFromDrawable(icon);
-            } catch (NameNotFoundException e) {
-                // shouldn't happen, but just return default
-            }
+        if (isAutoColorEnabled()) {
+            // Usually extracted in the background already
+            color = LedColorTable.getInstance(getActivity()).getColor(packageName, mDefaultColor,
+                    this::onColorExtracted);
         }
         return color;
     }
 
+    private void onColorExtracted(String packageName, int color) {
+        if (!isAdded()) {
+            return;
+        }
+        // Only replace the default color the application was added with
+        Package pkg = mPackages.get(packageName);
+        if (pkg != null && pkg.color != null && pkg.color == mDefaultColor) {
+            pkg.color = color;
+            savePackageList(false);
+            refreshCustomApplicationPrefs();
+        }
+    }
+
     private void addCustomApplicationPref(String packageName) {
         Package pkg = mPackages.get(packageName);
         if (pkg == null) {
             int color = getInitialColorForPackage(packageName);
             pkg = new Package(packageName, color, mDefaultLedOn, mDefaultLedOff);
-            mPackages.put(packageName, pkg);
+            mPackages.put(pkg);
             savePackageList(false);
             refreshCustomApplicationPrefs();
         }
     }
 
     private void removeCustomApplicationPref(String packageName) {
-        if (mPackages.remove(packageName) != null) {
+        if (mPackages.remove(packageName)) {
             savePackageList(false);
             refreshCustomApplicationPrefs();
         }
@@ -376,32 +419,16 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
         }
 
         mPackageList = baseString;
-        mPackages.clear();
+        // Entries are only decoded when they're shown or edited
+        mPackages = ApplicationLightValues.parse(baseString);
 
-        if (baseString != null) {
-            final String[] array = TextUtils.split(baseString, "\\|");
-            for (String item : array) {
-                if (TextUtils.isEmpty(item)) {
-                    continue;
-                }
-                Package pkg = Package.fromString(item);
-                if (pkg != null) {
-                    mPackages.put(pkg.name, pkg);
-                }
-            }
-        }
-
-        mPackageAdapter.setExcludedPackages(new HashSet<>(mPackages.keySet()));
+        mPackageAdapter.setExcludedPackages(new HashSet<>(mPackages.getPackageNames()));
 
         return true;
     }
 
     private void savePackageList(boolean preferencesUpdated) {
-        List<String> settings = new ArrayList<>();
-        for (Package app : mPackages.values()) {
-            settings.add(app.toString());
-        }
-        final String value = TextUtils.join("|", settings);
+        final String value = mPackages.toString();
         if (preferencesUpdated) {
             mPackageList = value;
         }
@@ -419,30 +446,30 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
         ContentResolver resolver = getActivity().getContentResolver();
 
         if (packageName.equals(DEFAULT_PREF)) {
-            LineageSettings.System.putInt(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR, color);
-            LineageSettings.System.putInt(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON, timeon);
-            LineageSettings.System.putInt(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF, timeoff);
+            LineageSettingsWriter.system(resolver)
+                    .putInt(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR, color)
+                    .putInt(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON, timeon)
+                    .putInt(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF,
+                            timeoff)
+                    .commit();
             refreshDefault();
             return;
         } else if (packageName.equals(MISSED_CALL_PREF)) {
-            LineageSettings.System.putInt(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CALL_COLOR, color);
-            LineageSettings.System.putInt(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CALL_LED_ON, timeon);
-            LineageSettings.System.putInt(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CALL_LED_OFF, timeoff);
+            LineageSettingsWriter.system(resolver)
+                    .putInt(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CALL_COLOR, color)
+                    .putInt(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CALL_LED_ON, timeon)
+                    .putInt(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CALL_LED_OFF,
+                            timeoff)
+                    .commit();
             refreshDefault();
             return;
         } else if (packageName.equals(VOICEMAIL_PREF)) {
-            LineageSettings.System.putInt(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_VMAIL_COLOR, color);
-            LineageSettings.System.putInt(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_VMAIL_LED_ON, timeon);
-            LineageSettings.System.putInt(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_VMAIL_LED_OFF, timeoff);
+            LineageSettingsWriter.system(resolver)
+                    .putInt(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_VMAIL_COLOR, color)
+                    .putInt(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_VMAIL_LED_ON, timeon)
+                    .putInt(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_VMAIL_LED_OFF,
+                            timeoff)
+                    .commit();
             refreshDefault();
             return;
         }
@@ -461,12 +488,12 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
         ContentResolver resolver = getActivity().getContentResolver();
 
         // Reset to the framework default colors
-        LineageSettings.System.putInt(resolver,
-                LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR, mDefaultColor);
-        LineageSettings.System.putInt(resolver,
-                LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CALL_COLOR, mDefaultColor);
-        LineageSettings.System.putInt(resolver,
-                LineageSettings.System.NOTIFICATION_LIGHT_PULSE_VMAIL_COLOR, mDefaultColor);
+        LineageSettingsWriter.system(resolver)
+                .putInt(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR,
+                        mDefaultColor)
+                .putInt(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CALL_COLOR, mDefaultColor)
+                .putInt(LineageSettings.System.NOTIFICATION_LIGHT_PULSE_VMAIL_COLOR, mDefaultColor)
+                .commit();
 
         refreshDefault();
     }
@@ -537,59 +564,6 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
         return dialog;
     }
 
-    /**
-     * Application class
-     */
-    private static class Package {
-        public String name;
-        public Integer color;
-        public Integer timeon;
-        public Integer timeoff;
-
-        /**
-         * Stores all the application values in one call
-         */
-        public Package(String name, Integer color, Integer timeon, Integer timeoff) {
-            this.name = name;
-            this.color = color;
-            this.timeon = timeon;
-            this.timeoff = timeoff;
-        }
-
-        public String toString() {
-            StringBuilder builder = new StringBuilder();
-            builder.append(name);
-            builder.append("=");
-            builder.append(color);
-            builder.append(";");
-            builder.append(timeon);
-            builder.append(";");
-            builder.append(timeoff);
-            return builder.toString();
-        }
-
-        public static Package fromString(String value) {
-            if (TextUtils.isEmpty(value)) {
-                return null;
-            }
-            String[] app = value.split("=", -1);
-            if (app.length != 2)
-                return null;
-
-            String[] values = app[1].split(";", -1);
-            if (values.length != 3)
-                return null;
-
-            try {
-                return new Package(app[0], Integer.parseInt(values[0]), Integer
-                        .parseInt(values[1]), Integer.parseInt(values[2]));
-            } catch (NumberFormatException e) {
-                return null;
-            }
-        }
-
-    }
-
     public static final SummaryProvider SUMMARY_PROVIDER = (context, key) -> {
         if (Settings.System.getInt(context.getContentResolver(),
                 Settings.System.NOTIFICATION_LIGHT_PULSE, 1) == 1) {
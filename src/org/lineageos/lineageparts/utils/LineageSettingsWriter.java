@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2022 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.lineageparts.utils;
+
+import android.content.ContentResolver;
+import android.text.TextUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lineageos.providers.LineageSettings;
+
+/**
+ * Writes several values of the same Lineage settings table, skipping the ones which
+ * match the stored values. Each changed setting is still written on its own, so it
+ * costs a provider call and a change notification to its observers; unchanged ones
+ * cost neither.
+ */
+public class LineageSettingsWriter {
+
+    private final ContentResolver mResolver;
+    private final boolean mSecure;
+    private final Map<String, String> mValues = new LinkedHashMap<>();
+
+    private LineageSettingsWriter(ContentResolver resolver, boolean secure) {
+        mResolver = resolver;
+        mSecure = secure;
+    }
+
+    /**
+     * Returns a writer of {@link LineageSettings.System} values.
+     */
+    public static LineageSettingsWriter system(ContentResolver resolver) {
+        return new LineageSettingsWriter(resolver, false);
+    }
+
+    /**
+     * Returns a writer of {@link LineageSettings.Secure} values.
+     */
+    public static LineageSettingsWriter secure(ContentResolver resolver) {
+        return new LineageSettingsWriter(resolver, true);
+    }
+
+    public LineageSettingsWriter putInt(String name, int value) {
+        return putString(name, Integer.toString(value));
+    }
+
+    public LineageSettingsWriter putFloat(String name, float value) {
+        return putString(name, Float.toString(value));
+    }
+
+    public LineageSettingsWriter putString(String name, String value) {
+        // A later value of the same setting replaces the earlier one
+        mValues.put(name, value);
+        return this;
+    }
+
+    /**
+     * Writes the values which differ from the stored ones, in the order they were put.
+     *
+     * @return the number of settings written
+     */
+    public int commit() {
+        int written = 0;
+        for (Map.Entry<String, String> entry : mValues.entrySet()) {
+            final String name = entry.getKey();
+            final String value = entry.getValue();
+            // Reads are served by the settings cache, writes go to the provider
+            final String current = mSecure
+                    ? LineageSettings.Secure.getString(mResolver, name)
+                    : LineageSettings.System.getString(mResolver, name);
+            if (TextUtils.equals(current, value)) {
+                continue;
+            }
+            final boolean success = mSecure
+                    ? LineageSettings.Secure.putString(mResolver, name, value)
+                    : LineageSettings.System.putString(mResolver, name, value);
+            if (success) {
+                written++;
+            }
+        }
+        mValues.clear();
+        return written;
+    }
+}
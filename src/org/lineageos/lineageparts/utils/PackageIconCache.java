@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2022 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.lineageparts.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process wide cache of application labels and icons. Entries are keyed by package
+ * and version code, so updated applications are loaded again, and all the entries of
+ * a package are dropped when it changes or is removed. Labels are also dropped when
+ * the locale changes. Icons are loaded on a background thread.
+ */
+public class PackageIconCache {
+
+    private static final int MAX_LABELS = 512;
+    private static final int MAX_ICONS = 64;
+
+    public interface Callback {
+        void onIconLoaded(Drawable icon);
+    }
+
+    private static PackageIconCache sInstance;
+
+    private final PackageManager mPm;
+    private final LruCache<String, CharSequence> mLabels = new LruCache<>(MAX_LABELS);
+    private final LruCache<String, Drawable> mIcons = new LruCache<>(MAX_ICONS);
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_LOCALE_CHANGED.equals(intent.getAction())) {
+                // Labels are localized
+                mLabels.evictAll();
+                return;
+            }
+            Uri data = intent.getData();
+            if (data != null) {
+                evict(data.getSchemeSpecificPart());
+            }
+        }
+    };
+
+    public static synchronized PackageIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PackageIconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PackageIconCache(Context context) {
+        mPm = context.getPackageManager();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+        context.registerReceiver(mPackageReceiver,
+                new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+    }
+
+    /**
+     * Returns the label of an application, loading it if it isn't cached.
+     */
+    public CharSequence getLabel(ApplicationInfo info) {
+        final String key = getKey(info);
+        CharSequence label = mLabels.get(key);
+        if (label == null) {
+            label = info.loadLabel(mPm);
+            mLabels.put(key, label);
+        }
+        return label;
+    }
+
+    /**
+     * Returns the icon of an application, or null if it isn't cached.
+     */
+    public Drawable getCachedIcon(ApplicationInfo info) {
+        return newIcon(mIcons.get(getKey(info)));
+    }
+
+    /**
+     * Loads the icon of an application in the background, unless it's cached. The
+     * callback is invoked on the main thread, right away if the icon is cached.
+     */
+    public void loadIcon(ApplicationInfo info, Callback callback) {
+        final String key = getKey(info);
+        Drawable icon = mIcons.get(key);
+        if (icon != null) {
+            callback.onIconLoaded(newIcon(icon));
+            return;
+        }
+        mExecutor.execute(() -> {
+            Drawable loaded = mIcons.get(key);
+            if (loaded == null) {
+                loaded = info.loadIcon(mPm);
+                mIcons.put(key, loaded);
+            }
+            final Drawable result = newIcon(loaded);
+            mHandler.post(() -> callback.onIconLoaded(result));
+        });
+    }
+
+    /**
+     * Drops the cached label and icons of a package. The cache does it by itself when a
+     * package changes, but a caller reloading a package on the same broadcast has to do
+     * it first, as broadcast receivers run in no particular order.
+     */
+    public void evict(String packageName) {
+        final String prefix = packageName + ":";
+        for (String key : mLabels.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mLabels.remove(key);
+            }
+        }
+        for (String key : mIcons.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mIcons.remove(key);
+            }
+        }
+    }
+
+    private static String getKey(ApplicationInfo info) {
+        return info.packageName + ":" + info.longVersionCode;
+    }
+
+    // Cached icons are shared, so every user gets its own drawable
+    private static Drawable newIcon(Drawable icon) {
+        if (icon == null) {
+            return null;
+        }
+        Drawable.ConstantState state = icon.getConstantState();
+        return state != null ? state.newDrawable() : icon;
+    }
+}
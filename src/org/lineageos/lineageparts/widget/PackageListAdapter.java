@@ -17,15 +17,18 @@
 
 package org.lineageos.lineageparts.widget;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -35,20 +38,35 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import org.lineageos.lineageparts.R;
+import org.lineageos.lineageparts.utils.PackageIconCache;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class PackageListAdapter extends BaseAdapter implements Runnable {
+public class PackageListAdapter extends BaseAdapter {
+    // Loaded packages are published every BATCH_SIZE packages or BATCH_INTERVAL ms
+    private static final int BATCH_SIZE = 32;
+    private static final long BATCH_INTERVAL = 100;
+
+    private final Context mContext;
     private final PackageManager mPm;
+    private final PackageIconCache mIconCache;
     private final LayoutInflater mInflater;
-    private final List<PackageItem> mInstalledPackages = new LinkedList<>();
+    // Both sorted, and only accessed from the main thread: all the packages, and the
+    // ones which aren't excluded
+    private ArrayList<PackageItem> mAllPackages = new ArrayList<>();
+    private ArrayList<PackageItem> mInstalledPackages = new ArrayList<>();
     private Set<String> mExcludedPackages = new HashSet<>();
 
+    // Loads and package updates run in order, so are their results
+    private final ExecutorService mLoader = Executors.newSingleThreadExecutor();
+
     // Packages which don't have launcher icons, but which we want to show nevertheless
     private static final String[] PACKAGE_WHITELIST = new String[] {
         "android",                          /* system server */
@@ -56,17 +74,21 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
         "com.android.providers.downloads"   /* download provider */
     };
 
-    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
         @Override
-        public void handleMessage(Message msg) {
-            PackageItem item = (PackageItem) msg.obj;
-            int index = Collections.binarySearch(mInstalledPackages, item);
-            if (index < 0) {
-                mInstalledPackages.add(-index - 1, item);
-            } else {
-                mInstalledPackages.get(index).activityTitles.addAll(item.activityTitles);
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data == null || (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                    && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false))) {
+                // An update is followed by PACKAGE_ADDED
+                return;
             }
-            notifyDataSetChanged();
+            final String packageName = data.getSchemeSpecificPart();
+            // The version code may be unchanged, don't let the reload use stale labels
+            mIconCache.evict(packageName);
+            mLoader.execute(() -> updatePackage(packageName));
         }
     };
 
@@ -74,12 +96,13 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
         public final String packageName;
         public final CharSequence title;
         private final TreeSet<CharSequence> activityTitles = new TreeSet<>();
-        public final Drawable icon;
+        // Icons are only loaded for the items which are shown
+        private final ApplicationInfo appInfo;
 
-        PackageItem(String packageName, CharSequence title, Drawable icon) {
-            this.packageName = packageName;
+        PackageItem(ApplicationInfo appInfo, CharSequence title) {
+            this.packageName = appInfo.packageName;
             this.title = title;
-            this.icon = icon;
+            this.appInfo = appInfo;
         }
 
         @Override
@@ -90,31 +113,43 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
     }
 
     public PackageListAdapter(Context context) {
+        mContext = context;
         mPm = context.getPackageManager();
+        mIconCache = PackageIconCache.getInstance(context);
         mInflater = LayoutInflater.from(context);
-        reloadList();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+
+        mLoader.execute(this::loadPackages);
+    }
+
+    /**
+     * Stops following package changes. The adapter can't be used anymore afterwards.
+     */
+    public void destroy() {
+        mContext.unregisterReceiver(mPackageReceiver);
+        mLoader.shutdownNow();
     }
 
     @Override
     public int getCount() {
-        synchronized (mInstalledPackages) {
-            return mInstalledPackages.size();
-        }
+        return mInstalledPackages.size();
     }
 
     @Override
     public PackageItem getItem(int position) {
-        synchronized (mInstalledPackages) {
-            return mInstalledPackages.get(position);
-        }
+        return mInstalledPackages.get(position);
     }
 
     @Override
     public long getItemId(int position) {
-        synchronized (mInstalledPackages) {
-            // packageName is guaranteed to be unique in mInstalledPackages
-            return mInstalledPackages.get(position).packageName.hashCode();
-        }
+        // packageName is guaranteed to be unique in mInstalledPackages
+        return mInstalledPackages.get(position).packageName.hashCode();
     }
 
     @Override
@@ -132,8 +167,20 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
         }
 
         PackageItem applicationInfo = getItem(position);
+        holder.packageName = applicationInfo.packageName;
         holder.title.setText(applicationInfo.title);
-        holder.icon.setImageDrawable(applicationInfo.icon);
+        Drawable icon = mIconCache.getCachedIcon(applicationInfo.appInfo);
+        holder.icon.setImageDrawable(icon);
+        if (icon == null) {
+            final ViewHolder boundHolder = holder;
+            final String packageName = applicationInfo.packageName;
+            mIconCache.loadIcon(applicationInfo.appInfo, loaded -> {
+                // The row may have been recycled meanwhile
+                if (packageName.equals(boundHolder.packageName)) {
+                    boundHolder.icon.setImageDrawable(loaded);
+                }
+            });
+        }
 
         boolean needSummary = applicationInfo.activityTitles.size() > 0;
         if (applicationInfo.activityTitles.size() == 1) {
@@ -152,50 +199,137 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
         return convertView;
     }
 
-    private void reloadList() {
-        mInstalledPackages.clear();
-        new Thread(this).start();
-    }
-
-    @Override
-    public void run() {
+    private void loadPackages() {
         final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
         mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
         List<ResolveInfo> installedAppsInfo = mPm.queryIntentActivities(mainIntent, 0);
 
+        ArrayList<PackageItem> batch = new ArrayList<>(BATCH_SIZE);
+        long lastPublished = SystemClock.uptimeMillis();
         for (ResolveInfo info : installedAppsInfo) {
-            ApplicationInfo appInfo = info.activityInfo.applicationInfo;
-            if (mExcludedPackages.contains(appInfo.packageName)) {
-                continue;
-            }
+            batch.add(createItem(info));
 
-            final PackageItem item = new PackageItem(appInfo.packageName,
-                    appInfo.loadLabel(mPm), appInfo.loadIcon(mPm));
-            item.activityTitles.add(info.loadLabel(mPm));
-            mHandler.obtainMessage(0, item).sendToTarget();
+            final long now = SystemClock.uptimeMillis();
+            if (batch.size() >= BATCH_SIZE || now - lastPublished >= BATCH_INTERVAL) {
+                publishBatch(null, batch);
+                batch = new ArrayList<>(BATCH_SIZE);
+                lastPublished = now;
+            }
         }
 
         for (String packageName : PACKAGE_WHITELIST) {
-            if (mExcludedPackages.contains(packageName)) {
+            PackageItem item = createWhitelistedItem(packageName);
+            if (item != null) {
+                batch.add(item);
+            }
+        }
+        publishBatch(null, batch);
+    }
+
+    private void updatePackage(String packageName) {
+        final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+        mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+        mainIntent.setPackage(packageName);
+        List<ResolveInfo> activities = mPm.queryIntentActivities(mainIntent, 0);
+
+        ArrayList<PackageItem> items = new ArrayList<>();
+        for (ResolveInfo info : activities) {
+            items.add(createItem(info));
+        }
+        if (items.isEmpty()) {
+            PackageItem item = createWhitelistedItem(packageName);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        publishBatch(packageName, items);
+    }
+
+    private PackageItem createItem(ResolveInfo info) {
+        ApplicationInfo appInfo = info.activityInfo.applicationInfo;
+        final PackageItem item = new PackageItem(appInfo, mIconCache.getLabel(appInfo));
+        item.activityTitles.add(info.loadLabel(mPm));
+        return item;
+    }
+
+    private PackageItem createWhitelistedItem(String packageName) {
+        for (String whitelisted : PACKAGE_WHITELIST) {
+            if (!whitelisted.equals(packageName)) {
                 continue;
             }
             try {
                 ApplicationInfo appInfo = mPm.getApplicationInfo(packageName, 0);
-                final PackageItem item = new PackageItem(appInfo.packageName,
-                        appInfo.loadLabel(mPm), appInfo.loadIcon(mPm));
-                mHandler.obtainMessage(0, item).sendToTarget();
+                return new PackageItem(appInfo, mIconCache.getLabel(appInfo));
             } catch (PackageManager.NameNotFoundException ignored) {
                 // package not present, so nothing to add -> ignore it
             }
         }
+        return null;
+    }
+
+    /**
+     * Adds a batch of packages to the list. If a package name is passed, its current
+     * entries are replaced by the batch.
+     */
+    private void publishBatch(final String replacedPackage, final ArrayList<PackageItem> batch) {
+        if (batch.isEmpty() && replacedPackage == null) {
+            return;
+        }
+        // Sort off the main thread, so only a linear merge is left to do there
+        Collections.sort(batch);
+        mHandler.post(() -> {
+            List<PackageItem> packages = mAllPackages;
+            if (replacedPackage != null) {
+                packages = new ArrayList<>(mAllPackages);
+                packages.removeIf(item -> item.packageName.equals(replacedPackage));
+            }
+            mAllPackages = merge(packages, batch);
+            applyExcludedPackages();
+        });
+    }
+
+    private void applyExcludedPackages() {
+        ArrayList<PackageItem> filtered = new ArrayList<>(mAllPackages.size());
+        for (PackageItem item : mAllPackages) {
+            if (!mExcludedPackages.contains(item.packageName)) {
+                filtered.add(item);
+            }
+        }
+        mInstalledPackages = filtered;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Merges two sorted lists of packages. Entries of the same package are merged
+     * into one, which lists the titles of all their activities.
+     */
+    private static ArrayList<PackageItem> merge(List<PackageItem> a, List<PackageItem> b) {
+        ArrayList<PackageItem> result = new ArrayList<>(a.size() + b.size());
+        int i = 0, j = 0;
+        while (i < a.size() || j < b.size()) {
+            final PackageItem item;
+            if (j >= b.size() || (i < a.size() && a.get(i).compareTo(b.get(j)) <= 0)) {
+                item = a.get(i++);
+            } else {
+                item = b.get(j++);
+            }
+            final int last = result.size() - 1;
+            if (last >= 0 && result.get(last).compareTo(item) == 0) {
+                result.get(last).activityTitles.addAll(item.activityTitles);
+            } else {
+                result.add(item);
+            }
+        }
+        return result;
     }
 
     public void setExcludedPackages(HashSet<String> packages) {
         mExcludedPackages = packages;
-        reloadList();
+        applyExcludedPackages();
     }
 
     private static class ViewHolder {
+        String packageName;
         TextView title;
         TextView summary;
         ImageView icon;